@@ -60,6 +60,7 @@ public interface Befrest {
     boolean refresh();
     void registerPushReceiver(BefrestPushReceiver receiver);
     void unregisterPushReceiver(BefrestPushReceiver receiver);
+    String publish(String data, PublishCallback callback);
     Befrest setLogLevel(int logLevel);
     int getLogLevel();
     int getSdkVersion();
@@ -21,25 +21,27 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Proxy;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 
-import javax.net.ssl.HandshakeCompletedEvent;
-import javax.net.ssl.HandshakeCompletedListener;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 
 class BefrestConnection extends Handler {
@@ -52,11 +54,12 @@ class BefrestConnection extends Handler {
     Context appContext;
 
     Class<?> pushService;
+    private BefrestImpl befrest;
 
     protected WebSocketReader mReader;
     protected WebSocketWriter mWriter;
-    protected HandlerThread mWriterThread;
     protected Socket mTransportChannel;
+    private String mWsUrl;
     private String mWsScheme;
     private String mWsHost;
     private int mWsPort;
@@ -67,6 +70,15 @@ class BefrestConnection extends Handler {
     private WebSocket.ConnectionHandler mWsHandler;
     protected WebSocketOptions mOptions;
     private MessageIdPersister lastReceivedMesseges;
+    private final BefrestPublisher publisher = new BefrestPublisher(this);
+    //reader and writer buffers, reused by every reconnect
+    private final ConnectionBufferPool buffers = new ConnectionBufferPool();
+    private HappyEyeballsConnector connector;
+    private DnsCache dnsCache;
+
+    //TLS sessions are cached per gateway host:port, reconnects resume them with an abbreviated handshake
+    private static final int TLS_SESSION_CACHE_SIZE = 8;
+    private static final int TLS_SESSION_TIMEOUT = 12 * 60 * 60; //seconds
 
     private boolean refreshRequested;
 
@@ -78,16 +90,67 @@ class BefrestConnection extends Handler {
     };
     private static final int SERVER_HANDSHAKE_TIMEOUT = 7 * 1000;
 
+    //connect pipeline: resolve and connect (TCP + TLS, all gateway addresses raced) run on a
+    //ConnectTask thread, the upgrade on reader and writer. each stage has its own timeout
+    private static final int RESOLVE_TIMEOUT = 5 * 1000;
+    private static final int TLS_HANDSHAKE_TIMEOUT = 5 * 1000;
+    private ConnectTask connectTask;
+    private int connectStage;
+    private long connectStartTime;
+    private long upgradeStartTime;
+    private String connectStageTimes;
+
+    //while connected gateway addresses are refreshed before their TTL runs out, checked at most this often
+    private static final int MIN_PREFETCH_INTERVAL = 30 * 1000;
+
+    private Runnable prefetchGatewayAddresses = new Runnable() {
+        @Override
+        public void run() {
+            dnsCache.prefetch(mWsHost);
+            schedulePrefetch();
+        }
+    };
+
+    private Runnable connectStageTimeOut = new Runnable() {
+        @Override
+        public void run() {
+            disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, ConnectTask.stageName(connectStage) + " timed out");
+        }
+    };
+
     //pinging variables and constants
-    private static final int[] PING_INTERVAL = {120 * 1000, 300 * 1000, 480 * 1000};
+    //ping interval is learned per network by keepAlive
+    private KeepAliveController keepAlive;
     private static final int PING_TIMEOUT = 5 * 1000;
     private static final String PING_DATA_PREFIX = String.valueOf((int) (Math.random() * 9999));
     private int currentPingId = 0;
-    private int prevSuccessfulPings;
-    private long lastPingSetTime; //last time a ping was set to be sent delayed
+    private long lastPingSetTime; //elapsed realtime a ping was last set to be sent delayed
+    private long lastPingSentTime; //elapsed realtime the current ping was handed to writer
+    private long lastTrafficTime; //elapsed realtime something was last received, connection idles since
+    private boolean nextPingIsKeepAlive; //next ping is the scheduled one, not a refresh
+    private boolean keepAlivePing; //current ping is the scheduled one, its timeout tells about the NAT
 
     private boolean restartInProgress;
 
+    //ack batching variables and constants
+    //gateways supporting cumulative acks echo this handshake header back, others get one ack per message
+    private static final String ACK_MODE_HEADER = "X-BF-ACK-MODE";
+    private static final String ACK_MODE_BATCH = "batch";
+    //a batched ack ("M" followed by comma separated type char + message id) is sent
+    //once this many acks are pending, or this long after the first one
+    private static final int ACK_BATCH_SIZE = 50;
+    private static final int ACK_BATCH_WINDOW = 200;
+    private boolean batchAcks;
+    private final StringBuilder pendingAcks = new StringBuilder();
+    private int pendingAckCount;
+
+    private Runnable flushAcks = new Runnable() {
+        @Override
+        public void run() {
+            flushAcks();
+        }
+    };
+
     private Runnable sendPing = new Runnable() {
         @Override
         public void run() {
@@ -105,6 +168,8 @@ class BefrestConnection extends Handler {
     private Runnable restart = new Runnable() {
         @Override
         public void run() {
+            if (keepAlivePing)
+                keepAlive.onPingFailed(lastPingSentTime - lastTrafficTime, BefrestInternal.Util.getNetworkKey(appContext));
             disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CONNECTION_NOT_RESPONDING, "connection did not respond to ping message after " + PING_TIMEOUT + "ms");
         }
     };
@@ -115,6 +180,9 @@ class BefrestConnection extends Handler {
             postDelayed(restart, PING_TIMEOUT);
             restartInProgress = true;
             currentPingId = (currentPingId + 1) % 5;
+            lastPingSentTime = SystemClock.elapsedRealtime();
+            keepAlivePing = nextPingIsKeepAlive;
+            nextPingIsKeepAlive = false;
             String payload = PING_DATA_PREFIX + currentPingId;
             mWriter.forward(new WebSocketMessage.Ping(payload.getBytes(Charset.defaultCharset())));
         } else BefLog.e(TAG, "could not send ping! writer is null");
@@ -124,8 +192,11 @@ class BefrestConnection extends Handler {
         boolean isValid = isValidPong(pongData);
         BefLog.d(TAG, "onPong(" + pongData + ") " + (isValid ? "valid" : "invalid!"));
         if (!isValid) return;
+        long now = SystemClock.elapsedRealtime();
+        BefLog.v(TAG, "ping rtt: " + (now - lastPingSentTime) + "ms");
         cancelUpcommingRestart();
-        prevSuccessfulPings++;
+        keepAlive.onPingSucceeded(lastPingSentTime - lastTrafficTime);
+        lastTrafficTime = now;
         setNextPingToSendInFuture();
         notifyConnectionRefreshedIfNeeded();
     }
@@ -147,24 +218,26 @@ class BefrestConnection extends Handler {
     }
 
     private int getPingInterval() {
-        return PING_INTERVAL[prevSuccessfulPings < PING_INTERVAL.length ? prevSuccessfulPings : PING_INTERVAL.length - 1];
+        return keepAlive.getInterval();
     }
 
     private void revisePinging() {
-        if (restartInProgress || System.currentTimeMillis() - lastPingSetTime < getPingInterval() / 2)
+        lastTrafficTime = SystemClock.elapsedRealtime();
+        if (restartInProgress || lastTrafficTime - lastPingSetTime < getPingInterval() / 2)
             return;
-        prevSuccessfulPings++;
         setNextPingToSendInFuture();
         BefLog.v(TAG, "BefrestImpl Pinging Revised");
     }
 
     private void setNextPingToSendInFuture() {
-        setNextPingToSendInFuture(getPingInterval());
+        setNextPingToSendInFuture(getPingInterval(), true);
     }
 
-    private void setNextPingToSendInFuture(int interval) {
+    private void setNextPingToSendInFuture(int interval, boolean keepAlive) {
+        nextPingIsKeepAlive = keepAlive;
         BefLog.v(TAG, "setNextPingToSendInFuture()  interval : " + interval);
-        lastPingSetTime = System.currentTimeMillis();
+        lastPingSetTime = SystemClock.elapsedRealtime();
+        removeCallbacks(sendPing);
         postDelayed(sendPing, interval);
         setKeepPingingAlarm(interval);
     }
@@ -176,7 +249,11 @@ class BefrestConnection extends Handler {
         this.mWsHandler = wsHandler;
         this.appContext = context.getApplicationContext();
         parseWebsocketUri(url, headers);
-        pushService = ((BefrestInvocHandler) Proxy.getInvocationHandler(BefrestFactory.getInternalInstance(appContext))).obj.pushService;
+        dnsCache = new DnsCache(appContext, GatewayResolver.SYSTEM);
+        connector = new HappyEyeballsConnector(mWsScheme.equals("wss") ? createSslSocketFactory() : null, mOptions.getTcpNoDelay());
+        keepAlive = new KeepAliveController(appContext);
+        befrest = ((BefrestInvocHandler) Proxy.getInvocationHandler(BefrestFactory.getInternalInstance(appContext))).obj;
+        pushService = befrest.pushService;
         lastReceivedMesseges = new MessageIdPersister(appContext);
         BefLog.v(TAG, "lastReceivedMessages: " + lastReceivedMesseges);
     }
@@ -214,12 +291,21 @@ class BefrestConnection extends Handler {
     @Override
     public void handleMessage(Message msg) {
         try {
-            if (msg.obj instanceof WebSocketMessage.Message) {
+            if (msg.obj instanceof WebSocketMessage.StreamMessage) {
+                //stream sent by app
+                sendStream((WebSocketMessage.StreamMessage) msg.obj);
+            } else if (msg.obj instanceof WebSocketMessage.Message) {
                 //msg from reader and writer
                 handleMsgFromReaderWriter(((WebSocketMessage.Message) msg.obj));
             } else if (msg.obj instanceof BefrestEvent) {
                 //msg from push service
                 handleBefrestEvent(((BefrestEvent) msg.obj));
+            } else if (msg.obj instanceof ConnectTask) {
+                //connect stage reached
+                onConnectStage((ConnectTask) msg.obj, msg.arg1);
+            } else if (msg.obj instanceof BefrestPublisher.Publication) {
+                //msg published by app
+                publisher.publish((BefrestPublisher.Publication) msg.obj);
             }
         } catch (Throwable t) {
             BefLog.e(TAG, "unExpected Exception!");
@@ -237,11 +323,59 @@ class BefrestConnection extends Handler {
         sendMessage(msg);
     }
 
+    /**
+     * Send a binary or raw (UTF-8) text message of any size in fragments, reading it
+     * from source while it is sent. The source is closed once read to the end, or
+     * right away if befrest is not connected.
+     */
+    void sendStreamMessage(boolean text, InputStream source) {
+        forward(new WebSocketMessage.StreamMessage(text, source));
+    }
+
+    private void sendStream(WebSocketMessage.StreamMessage stream) {
+        if (mWriter != null) {
+            mWriter.forward(stream);
+            return;
+        }
+        BefLog.v(TAG, "Could not send stream as mWriter is null (befrest is disconnected)");
+        try {
+            stream.mSource.close();
+        } catch (IOException e) {
+            BefLog.e(TAG, e);
+        }
+    }
+
     private boolean isNewMessage(String msgId) {
         return !lastReceivedMesseges.contains(msgId);
     }
 
     private void sendAck(String ack) {
+        if (batchAcks)
+            queueAck(ack);
+        else
+            forwardAck(ack);
+    }
+
+    private void queueAck(String ack) {
+        if (pendingAckCount == 0)
+            postDelayed(flushAcks, ACK_BATCH_WINDOW);
+        else
+            pendingAcks.append(',');
+        pendingAcks.append(ack, 1, ack.length()); //drop the leading "A"
+        if (++pendingAckCount >= ACK_BATCH_SIZE)
+            flushAcks();
+    }
+
+    private void flushAcks() {
+        removeCallbacks(flushAcks);
+        if (pendingAckCount == 0) return;
+        String acks = "M" + pendingAcks;
+        pendingAcks.setLength(0);
+        pendingAckCount = 0;
+        forwardAck(acks);
+    }
+
+    private void forwardAck(String ack) {
         try {
             if (mWriter != null) {
                 mWriter.forward(new WebSocketMessage.TextMessage(ack));
@@ -257,33 +391,96 @@ class BefrestConnection extends Handler {
         }
     }
 
+    private void logBefrestHeaders(Map<String, String> headers) {
+        if (headers == null) return;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().startsWith("x-bf-"))
+                BefLog.v(TAG, "handshake header " + header.getKey() + ": " + header.getValue());
+        }
+    }
+
+    /**
+     * Handle a push message: ack it and hand it on unless already received.
+     *
+     * @return true if a new message id was recorded and lastReceivedMesseges needs saving.
+     */
+    private boolean handleTextMessage(WebSocketMessage.TextMessage textMessage) {
+        BefLog.d(TAG, "rawMsg: " + textMessage.mPayload);
+        BefrestMessage bmsg = new BefrestMessage(appContext, textMessage.mPayload);
+        if (bmsg.isCorrupted)
+            return false;
+        if (bmsg.type == BefrestMessage.MsgType.RECEIPT) {
+            publisher.onReceipt(bmsg.msgId);
+            return false;
+        }
+        if (bmsg.msgId != null && bmsg.type != BefrestMessage.MsgType.BATCH && bmsg.type != BefrestMessage.MsgType.PONG) {
+            sendAck(bmsg.getAckMessage());
+            if (isNewMessage(bmsg.msgId)) {
+                lastReceivedMesseges.add(bmsg.msgId);
+                mWsHandler.onBefrestMessage(bmsg);
+                return true;
+            }
+        } else
+            mWsHandler.onBefrestMessage(bmsg);
+        return false;
+    }
+
+    /**
+     * Handle all messages the reader decoded from one socket read. Pinging is
+     * revised and received message ids are saved once for the whole batch.
+     */
+    private void handleBatch(WebSocketMessage.Batch batch) {
+        boolean received = false;
+        boolean newIds = false;
+        for (WebSocketMessage.Message msg : batch.mMessages) {
+            if (msg instanceof WebSocketMessage.TextMessage) {
+                if (!received) {
+                    revisePinging();
+                    received = true;
+                }
+                newIds |= handleTextMessage((WebSocketMessage.TextMessage) msg);
+            } else
+                handleMsgFromReaderWriter(msg);
+        }
+        if (newIds)
+            lastReceivedMesseges.save();
+    }
+
     public void handleMsgFromReaderWriter(WebSocketMessage.Message msg) {
         if (msg instanceof WebSocketMessage.TextMessage) {
-            WebSocketMessage.TextMessage textMessage = (WebSocketMessage.TextMessage) msg;
             revisePinging();
-            BefLog.d(TAG, "rawMsg: " + textMessage.mPayload);
-            BefrestMessage bmsg = new BefrestMessage(appContext, textMessage.mPayload);
-            if (bmsg.isCorrupted)
-                return;
-            if (bmsg.msgId != null && bmsg.type != BefrestMessage.MsgType.BATCH && bmsg.type != BefrestMessage.MsgType.PONG) {
-                sendAck(bmsg.getAckMessage());
-                if (isNewMessage(bmsg.msgId)) {
-                    lastReceivedMesseges.add(bmsg.msgId);
-                    mWsHandler.onBefrestMessage(bmsg);
-                    lastReceivedMesseges.save();
-                }
-            } else
-                mWsHandler.onBefrestMessage(bmsg);
+            if (handleTextMessage((WebSocketMessage.TextMessage) msg))
+                lastReceivedMesseges.save();
+        } else if (msg instanceof WebSocketMessage.Batch) {
+            handleBatch((WebSocketMessage.Batch) msg);
         } else if (msg instanceof WebSocketMessage.RawTextMessage) {
 
             WebSocketMessage.RawTextMessage rawTextMessage = (WebSocketMessage.RawTextMessage) msg;
 
-            mWsHandler.onRawTextMessage(rawTextMessage.mPayload);
+            if (rawTextMessage.mPool != null) {
+                mWsHandler.onRawTextMessage(rawTextMessage.mPayload, rawTextMessage.mLength);
+                rawTextMessage.release();
+            } else
+                mWsHandler.onRawTextMessage(rawTextMessage.mPayload);
 
         } else if (msg instanceof WebSocketMessage.BinaryMessage) {
 
             WebSocketMessage.BinaryMessage binaryMessage = (WebSocketMessage.BinaryMessage) msg;
-            mWsHandler.onBinaryMessage(binaryMessage.mPayload);
+            if (binaryMessage.mPool != null) {
+                mWsHandler.onBinaryMessage(binaryMessage.mPayload, binaryMessage.mLength);
+                binaryMessage.release();
+            } else
+                mWsHandler.onBinaryMessage(binaryMessage.mPayload);
+
+        } else if (msg instanceof WebSocketMessage.MessageFragment) {
+
+            WebSocketMessage.MessageFragment fragment = (WebSocketMessage.MessageFragment) msg;
+            try {
+                mWsHandler.onMessageFragment(fragment.mText, fragment.mPayload, fragment.mLength, fragment.mLast);
+            } finally {
+                // hand buffer back so the reader can go on receiving
+                fragment.release();
+            }
 
         } else if (msg instanceof WebSocketMessage.Ping) {
 
@@ -312,6 +509,16 @@ class BefrestConnection extends Handler {
             removeCallbacks(disconnectIfWebSocketHandshakeTimeOut);
 
             if (serverHandshake.mSuccess) {
+                long now = SystemClock.elapsedRealtime();
+                BefLog.d(TAG, "connected in " + (now - connectStartTime) + "ms (" + connectStageTimes + ", upgrade " + (now - upgradeStartTime) + "ms)");
+                logBefrestHeaders(serverHandshake.mHeaders);
+                batchAcks = serverHandshake.mHeaders != null
+                        && ACK_MODE_BATCH.equalsIgnoreCase(serverHandshake.mHeaders.get(ACK_MODE_HEADER.toLowerCase(Locale.US)));
+                BefLog.v(TAG, "ack mode: " + (batchAcks ? "batch" : "per message"));
+                if (serverHandshake.mDeflate != null && mWriter != null) {
+                    // let writer compress outgoing messages
+                    mWriter.forward(serverHandshake);
+                }
                 try {
                     mWsHandler.onOpen();
                 } catch (Exception e) {
@@ -325,9 +532,13 @@ class BefrestConnection extends Handler {
                     b.stop();
                     b.start();
                 }
+                publisher.onOpen(mWriter, serverHandshake.mHeaders != null
+                        && BefrestPublisher.PUBLISH_VERSION.equals(serverHandshake.mHeaders.get(BefrestPublisher.PUBLISH_HEADER.toLowerCase(Locale.US))));
+                schedulePrefetch();
                 postDelayed(releaseConnectWakeLock, 2000);
                 notifyConnectionRefreshedIfNeeded();
-                prevSuccessfulPings = 0;
+                keepAlive.onConnected(BefrestInternal.Util.getNetworkKey(appContext));
+                lastTrafficTime = SystemClock.elapsedRealtime();
                 setNextPingToSendInFuture();
 
             } else {
@@ -376,6 +587,7 @@ class BefrestConnection extends Handler {
                 disconnect();
                 break;
             case STOP:
+                publisher.failAll("befrest stopped");
                 mLooper.quit();
                 break;
             case REFRESH:
@@ -390,10 +602,9 @@ class BefrestConnection extends Handler {
     private void refresh() {
         refreshRequested = true;
         if (isConnected()) {
-//            prevSuccessfulPings = 0; seems illogical
             cancelFuturePing();
             cancelUpcommingRestart();
-            setNextPingToSendInFuture(0);
+            setNextPingToSendInFuture(0, false);
         } else {
             BefLog.v(TAG, "refresh received when socket is not connected. will connect...");
             connect();
@@ -411,83 +622,139 @@ class BefrestConnection extends Handler {
         BefLog.v(TAG, "--------------------------connect()_START--------------------");
         if (isConnected()) {
             BefLog.v(TAG, "already connected!");
+        } else if (connectTask != null) {
+            BefLog.v(TAG, "already connecting! (" + ConnectTask.stageName(connectStage) + ")");
         } else if (appContext != null && !BefrestImpl.Util.isConnectedToInternet(appContext)) {
             BefLog.v(TAG, "no internet connection!");
         } else {
             acquireConnectWakeLockIfPossible();
-            waitABit();
-            try {
-                mTransportChannel = createSocket();
-                if (isConnected()) {
-                    createReader();
-                    createWriter();
-                    startWebSocketHandshake();
-                    postDelayed(disconnectIfWebSocketHandshakeTimeOut, SERVER_HANDSHAKE_TIMEOUT);
-                } else {
-                    disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, "Could not connect to WebSocket server");
-                }
-            } catch (IOException e) {
-                BefLog.e(TAG, e);
-                disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, e.getMessage());
-            } catch (Exception ex) {
-                BefLog.e(TAG, ex);
-                disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, ex.getMessage());
-            } catch (AssertionError e) {
-                if (isAndroidGetsocknameError(e))
-                    disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, e.getMessage());
-                else
-                    throw e;
-            }
+            connectStartTime = SystemClock.elapsedRealtime();
+            connectTask = new ConnectTask(this, dnsCache, connector, mWsHost, mWsPort, getConnectStageTimeout());
+            connectTask.start();
         }
         BefLog.v(TAG, "--------------------------connect()_END--------------------");
     }
 
-    private void waitABit() {
+    /**
+     * Stage reported by the connect task. Every stage arms its own timeout, a task
+     * cancelled meanwhile is ignored and its socket closed.
+     */
+    private void onConnectStage(ConnectTask task, int stage) {
+        if (task != connectTask) {
+            if (stage == ConnectTask.STAGE_DONE)
+                task.closeSocket();
+            return;
+        }
+        removeCallbacks(connectStageTimeOut);
+        connectStage = stage;
+        switch (stage) {
+            case ConnectTask.STAGE_RESOLVE:
+                postDelayed(connectStageTimeOut, RESOLVE_TIMEOUT);
+                break;
+            case ConnectTask.STAGE_CONNECT:
+                postDelayed(connectStageTimeOut, getConnectStageTimeout());
+                break;
+            case ConnectTask.STAGE_DONE:
+                connectTask = null;
+                connectStageTimes = "resolve " + task.mResolveTime + "ms, tcp " + task.mTcpTime + "ms, tls " + task.mTlsTime + "ms";
+                startUpgrade(task.mSocket);
+                break;
+            case ConnectTask.STAGE_FAILED:
+                connectTask = null;
+                BefLog.e(TAG, task.mError);
+                disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, task.mError.getMessage());
+                break;
+        }
+    }
+
+    /**
+     * Last connect stage, the upgrade: reader and writer are started on the connected
+     * socket and the handshake request is sent, the response is awaited asynchronously.
+     */
+    private void startUpgrade(Socket socket) {
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            mTransportChannel = socket;
+            if (isConnected()) {
+                createReader();
+                createWriter();
+                upgradeStartTime = SystemClock.elapsedRealtime();
+                startWebSocketHandshake();
+                postDelayed(disconnectIfWebSocketHandshakeTimeOut, SERVER_HANDSHAKE_TIMEOUT);
+            } else {
+                disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, "Could not connect to WebSocket server");
+            }
+        } catch (IOException e) {
+            BefLog.e(TAG, e);
+            disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, e.getMessage());
+        } catch (Exception ex) {
+            BefLog.e(TAG, ex);
+            disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, ex.getMessage());
+        } catch (AssertionError e) {
+            if (isAndroidGetsocknameError(e))
+                disconnectAndNotify(WebSocketConnectionHandler.CLOSE_CANNOT_CONNECT, e.getMessage());
+            else
+                throw e;
         }
     }
 
-    private void startWebSocketHandshake() {
-        WebSocketMessage.ClientHandshake hs = new WebSocketMessage.ClientHandshake(
-                mWsHost + ":" + mWsPort);
-        hs.mPath = mWsPath;
-        hs.mQuery = mWsQuery;
-        hs.mSubprotocols = mWsSubprotocols;
-        hs.mHeaderList = mWsHeaders;
-        mWriter.forward(hs);
-    }
-
-    private Socket createSocket() throws IOException {
-        Socket soc;
-        if (mWsScheme.equals("wss")) {
-            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-//                SSLSocket secSoc = (SSLSocket) factory.createSocket(mWsHost, mWsPort);
-            SSLSocket secSoc = (SSLSocket) factory.createSocket();
-            secSoc.setUseClientMode(true);
-            secSoc.connect(new InetSocketAddress(mWsHost, mWsPort), mOptions.getSocketConnectTimeout());
-//                secSoc.setSoTimeout(mOptions.getSocketReceiveTimeout());
-            secSoc.setTcpNoDelay(mOptions.getTcpNoDelay());
-            secSoc.addHandshakeCompletedListener(new HandshakeCompletedListener() {
-                public void handshakeCompleted(HandshakeCompletedEvent event) {
-                    BefLog.d(TAG, "ssl handshake completed");
-                }
-            });
-            soc = secSoc;
-        } else
-            soc = new Socket(mWsHost, mWsPort);
-        return soc;
+    private void schedulePrefetch() {
+        removeCallbacks(prefetchGatewayAddresses);
+        postDelayed(prefetchGatewayAddresses, Math.max(MIN_PREFETCH_INTERVAL, dnsCache.timeToPrefetch(mWsHost)));
+    }
+
+    private int getConnectStageTimeout() {
+        return mOptions.getSocketConnectTimeout() + TLS_HANDSHAKE_TIMEOUT;
+    }
+
+    /**
+     * Send the opening handshake. The encoded request is kept in BefrestImpl and
+     * reused on reconnect until the subscribe data changes.
+     */
+    private void startWebSocketHandshake() throws IOException {
+        ClientHandshakeTemplate template = befrest.handshakeTemplate;
+        if (template == null || !template.isFor(mWsUrl, mWsHeaders, mOptions)) {
+            WebSocketMessage.ClientHandshake hs = new WebSocketMessage.ClientHandshake(
+                    mWsHost + ":" + mWsPort);
+            hs.mPath = mWsPath;
+            hs.mQuery = mWsQuery;
+            hs.mSubprotocols = mWsSubprotocols;
+            List<NameValuePair> headers = new ArrayList<>();
+            if (mWsHeaders != null)
+                headers.addAll(mWsHeaders);
+            headers.add(new NameValuePair(ACK_MODE_HEADER, ACK_MODE_BATCH));
+            headers.add(new NameValuePair(BefrestPublisher.PUBLISH_HEADER, BefrestPublisher.PUBLISH_VERSION));
+            hs.mHeaderList = headers;
+            template = new ClientHandshakeTemplate(hs, mOptions, mWsUrl, mWsHeaders);
+            befrest.handshakeTemplate = template;
+            BefLog.v(TAG, "handshake request encoded");
+        }
+        mWriter.forward(template);
+    }
+
+    /**
+     * Socket factory of an SSLContext owned by this connection, its client session
+     * cache outlives the sockets so reconnects can resume TLS sessions.
+     */
+    private SSLSocketFactory createSslSocketFactory() {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(TLS_SESSION_TIMEOUT);
+            return sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            BefLog.e(TAG, e);
+            return (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
     }
 
     /**
      * Create WebSockets background writer.
      */
     protected void createWriter() {
-        mWriterThread = new HandlerThread("WebSocketWriter");
-        mWriterThread.start();
-        mWriter = new WebSocketWriter(mWriterThread.getLooper(), this, mTransportChannel, mOptions, appContext);
+        mWriter = new WebSocketWriter(this, mTransportChannel, mOptions, buffers, appContext);
+        mWriter.start();
         BefLog.v(TAG, "WS writer created and started");
     }
 
@@ -496,7 +763,7 @@ class BefrestConnection extends Handler {
      * Create WebSockets background reader.
      */
     protected void createReader() {
-        mReader = new WebSocketReader(this, mTransportChannel, mOptions, "WebSocketReader", appContext);
+        mReader = new WebSocketReader(this, mTransportChannel, mOptions, buffers, "WebSocketReader", appContext);
         mReader.start();
         BefLog.v(TAG, "WS reader created and started");
     }
@@ -505,6 +772,7 @@ class BefrestConnection extends Handler {
     private void parseWebsocketUri(String wsUri, List<NameValuePair> headers) {
         try {
             URI mWsUri = new URI(wsUri);
+            mWsUrl = wsUri;
 
             mWsScheme = mWsUri.getScheme();
 
@@ -531,8 +799,21 @@ class BefrestConnection extends Handler {
     private void disconnect() {
         BefLog.v(TAG, "--------------------------disconnect()_START--------------------");
         removeCallbacks(disconnectIfWebSocketHandshakeTimeOut);
+        removeCallbacks(connectStageTimeOut);
+        removeCallbacks(prefetchGatewayAddresses);
+        if (connectTask != null) {
+            connectTask.cancel();
+            connectTask = null;
+        }
         cancelFuturePing();
         cancelUpcommingRestart();
+        //pending acks are dropped, gateway redelivers and duplicates are filtered on receive
+        removeCallbacks(flushAcks);
+        pendingAcks.setLength(0);
+        pendingAckCount = 0;
+        batchAcks = false;
+        //unreceipted published messages are kept and sent again on next connect
+        publisher.onClose();
         if (mReader != null) {
             mReader.quit();
         } else BefLog.v(TAG, "mReader was null");
@@ -555,9 +836,9 @@ class BefrestConnection extends Handler {
             } else {
                 BefLog.v(TAG, "mTransportChannel was NULL");
             }
-            if (mWriterThread != null) {
-                mWriterThread.join(1000);
-                BefLog.v(TAG, "mWriterThread joined");
+            if (mWriter != null) {
+                mWriter.join(1000);
+                BefLog.v(TAG, "mWriter joined");
             }
             if (mReader != null) {
                 mReader.join(1000);
@@ -568,7 +849,6 @@ class BefrestConnection extends Handler {
         }
         mReader = null;
         mWriter = null;
-        mWriterThread = null;
         mTransportChannel = null;
         BefLog.v(TAG, "--------------------------disconnect()_END--------------------");
     }
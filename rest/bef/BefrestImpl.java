@@ -75,6 +75,12 @@ final class BefrestImpl implements Befrest, BefrestInternal {
     String topics;
     boolean connectionDataChangedSinceLastStart;
 
+    /// connection of the running push service, set while the service is alive
+    volatile BefrestConnection connection;
+
+    /// encoded opening handshake of the current subscribe data, reused on every connect
+    volatile ClientHandshakeTemplate handshakeTemplate;
+
     boolean refreshIsRequested = false;
     long lastAcceptedRefreshRequestTime = 0;
 
@@ -329,6 +335,31 @@ final class BefrestImpl implements Befrest, BefrestInternal {
         context.unregisterReceiver(receiver);
     }
 
+    /**
+     * Send a message upstream over the push connection. Messages are pipelined and kept
+     * until the server sends a receipt, those not receipted in time or when the connection
+     * drops are sent again. Messages fail right away if the gateway does not support publish.
+     *
+     * @param data     message to send
+     * @param callback notified when the message is delivered or given up (may be null)
+     * @return id of the published message, as passed to callback
+     */
+    public String publish(String data, PublishCallback callback) {
+        if (data == null)
+            throw new BefrestException("invalid data!");
+        BefrestConnection connection = this.connection;
+        if (!isBefrestStarted || connection == null)
+            throw new BefrestException("befrest is not started!");
+        BefrestPublisher.Publication publication;
+        try {
+            publication = new BefrestPublisher.Publication(data, callback);
+        } catch (Exception e) {
+            throw new BefrestException("could not encode message!", e);
+        }
+        connection.forward(publication);
+        return publication.id;
+    }
+
     public Befrest setLogLevel(int logLevel) {
         if (logLevel < 0) BefLog.i(TAG, "Invalid Log Level!");
         else {
@@ -367,6 +398,7 @@ final class BefrestImpl implements Befrest, BefrestInternal {
         subscribeUrl = null;
         subscribeHeaders = null;
         authHeader = null;
+        handshakeTemplate = null;
         connectionDataChangedSinceLastStart = true;
     }
 
@@ -27,6 +27,7 @@ import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.telephony.TelephonyManager;
 import android.util.Base64;
 import android.view.Display;
 
@@ -93,6 +94,29 @@ interface BefrestInternal {
             return mWifi.isConnected();
         }
 
+        /**
+         * Key of the network device is connected through, "wifi" + SSID or "mobile" + operator
+         * MCC/MNC. Null if not connected or network could not be told.
+         */
+        static String getNetworkKey(Context context) {
+            try {
+                ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+                NetworkInfo netInfo = cm.getActiveNetworkInfo();
+                if (netInfo == null || !netInfo.isConnected())
+                    return null;
+                if (netInfo.getType() == ConnectivityManager.TYPE_WIFI)
+                    return "wifi " + netInfo.getExtraInfo();
+                if (netInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+                    TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                    return "mobile " + tm.getNetworkOperator();
+                }
+                return netInfo.getTypeName();
+            } catch (Exception e) {
+                BefLog.e(TAG, e);
+                return null;
+            }
+        }
+
         static String getBroadcastSendingPermission(Context context) {
             return context.getApplicationContext().getPackageName() + BROADCAST_SENDING_PERMISSION_POSTFIX;
         }
@@ -26,7 +26,7 @@ public final class BefrestMessage implements Parcelable {
     private static final String TAG = BefLog.TAG_PREF + "BefrestMessage";
 
     /* package */ enum MsgType {
-        NORMAL, BATCH, PONG, TOPIC, GROUP;
+        NORMAL, BATCH, PONG, TOPIC, GROUP, RECEIPT;
     }
 
     /* package */ MsgType type;
@@ -83,6 +83,9 @@ public final class BefrestMessage implements Parcelable {
             case "4":
                 type = MsgType.GROUP;
                 break;
+            case "5":
+                type = MsgType.RECEIPT; //msgId is the id of a message we published
+                break;
             default:
                 throw new JSONException("unKnown Push Type!");
         }
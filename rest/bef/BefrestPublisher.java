@@ -0,0 +1,242 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of messages published upstream over the push connection. Messages are
+ * pipelined: up to {@link #IN_FLIGHT_WINDOW} of them are on the wire waiting for a server
+ * receipt, later ones wait in a queue. Messages still waiting for a receipt when the
+ * connection drops are sent again, in order, as soon as a new connection is open, so
+ * delivery is at least once and the gateway drops duplicates by publish id. A message
+ * not receipted within {@link #RECEIPT_TIMEOUT} ms is sent again on the same connection.
+ * <p/>
+ * Gateways supporting publish echo the handshake header {@link #PUBLISH_HEADER}, on a
+ * connection to one that does not pending and new messages fail right away.
+ * <p/>
+ * Not thread safe, only used on BefrestThread by {@link BefrestConnection}.
+ */
+class BefrestPublisher {
+    private static final String TAG = BefLog.TAG_PREF + "BefrestPublisher";
+
+    /// Max number of published messages sent and waiting for receipt.
+    static final int IN_FLIGHT_WINDOW = 32;
+
+    /// Max number of published messages kept (in flight + queued).
+    static final int MAX_PENDING = 1000;
+
+    /// A message is given up after being sent this many times without receipt.
+    static final int MAX_SENDS = 3;
+
+    /// ms to wait for the receipt of a sent message before sending it again.
+    static final int RECEIPT_TIMEOUT = 10 * 1000;
+
+    /// Handshake header requesting publish support, echoed by gateways that have it.
+    static final String PUBLISH_HEADER = "X-BF-PUBLISH";
+    static final String PUBLISH_VERSION = "1";
+
+    private static final String ID_PREFIX = Integer.toString(new Random().nextInt(Integer.MAX_VALUE), 36) + "-";
+    private static final AtomicLong lastId = new AtomicLong();
+
+    static class Publication {
+        final String id;
+        final String frame;
+        final PublishCallback callback;
+        int sends;
+        /// elapsed realtime the receipt is due, set on send
+        long receiptDeadline;
+
+        Publication(String data, PublishCallback callback) throws JSONException, UnsupportedEncodingException {
+            this.id = ID_PREFIX + lastId.incrementAndGet();
+            this.frame = buildFrame(id, data);
+            this.callback = callback;
+        }
+    }
+
+    private final LinkedHashMap<String, Publication> inFlight = new LinkedHashMap<>();
+    private final ArrayDeque<Publication> queued = new ArrayDeque<>();
+
+    /// Writer of the open connection, null while disconnected.
+    private WebSocketWriter writer;
+
+    /// Set when the last opened connection did not advertise publish support.
+    private boolean unsupported;
+
+    /// Handler of BefrestThread, receipt timeouts are checked on.
+    private final Handler handler;
+
+    private final Runnable checkReceipts = new Runnable() {
+        @Override
+        public void run() {
+            checkReceipts();
+        }
+    };
+
+    BefrestPublisher(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Upstream frame: {"t":"P","mid":publish id,"m":base64 data}
+     */
+    private static String buildFrame(String id, String data) throws JSONException, UnsupportedEncodingException {
+        JSONObject frame = new JSONObject();
+        frame.put("t", "P");
+        frame.put("mid", id);
+        frame.put("m", Base64.encodeToString(data.getBytes("UTF-8"), Base64.NO_WRAP));
+        return frame.toString();
+    }
+
+    void publish(Publication p) {
+        if (unsupported) {
+            fail(p, "gateway does not support publish");
+            return;
+        }
+        if (inFlight.size() + queued.size() >= MAX_PENDING) {
+            fail(p, "too many messages waiting to be delivered");
+            return;
+        }
+        queued.add(p);
+        sendQueued();
+    }
+
+    /**
+     * Connection is open: resend whatever was in flight when the last one dropped,
+     * then fill up the window from queue.
+     *
+     * @param supported whether the gateway echoed {@link #PUBLISH_HEADER}
+     */
+    void onOpen(WebSocketWriter writer, boolean supported) {
+        unsupported = !supported;
+        if (unsupported) {
+            failAll("gateway does not support publish");
+            return;
+        }
+        this.writer = writer;
+        if (writer == null) return;
+        if (!inFlight.isEmpty()) {
+            BefLog.d(TAG, "replaying " + inFlight.size() + " unreceipted messages");
+            List<Publication> replay = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            for (Publication p : replay)
+                send(p);
+        }
+        sendQueued();
+    }
+
+    void onClose() {
+        writer = null;
+        handler.removeCallbacks(checkReceipts);
+    }
+
+    void onReceipt(String id) {
+        Publication p = inFlight.remove(id);
+        if (p == null) {
+            BefLog.v(TAG, "receipt for unknown or already receipted message " + id);
+            return;
+        }
+        BefLog.v(TAG, "message " + id + " delivered");
+        if (p.callback != null)
+            try {
+                p.callback.onDelivered(id);
+            } catch (Exception e) {
+                BefLog.e(TAG, e);
+            }
+        sendQueued();
+    }
+
+    /**
+     * Fail every pending message, e.g. when befrest is stopped.
+     */
+    void failAll(String reason) {
+        List<Publication> pending = new ArrayList<>(inFlight.values());
+        pending.addAll(queued);
+        inFlight.clear();
+        queued.clear();
+        for (Publication p : pending)
+            fail(p, reason);
+    }
+
+    private void sendQueued() {
+        while (writer != null && inFlight.size() < IN_FLIGHT_WINDOW && !queued.isEmpty())
+            send(queued.poll());
+    }
+
+    private void send(Publication p) {
+        if (++p.sends > MAX_SENDS) {
+            fail(p, "no receipt after " + MAX_SENDS + " tries");
+            return;
+        }
+        p.receiptDeadline = SystemClock.elapsedRealtime() + RECEIPT_TIMEOUT;
+        boolean first = inFlight.isEmpty();
+        inFlight.put(p.id, p);
+        writer.forward(new WebSocketMessage.TextMessage(p.frame));
+        if (first)
+            handler.postDelayed(checkReceipts, RECEIPT_TIMEOUT);
+    }
+
+    /**
+     * Send again messages whose receipt is overdue. Messages are in flight in send
+     * order, so the first one is always the next to be due.
+     */
+    private void checkReceipts() {
+        if (writer == null) return;
+        long now = SystemClock.elapsedRealtime();
+        List<Publication> overdue = new ArrayList<>();
+        for (Iterator<Publication> it = inFlight.values().iterator(); it.hasNext(); ) {
+            Publication p = it.next();
+            if (p.receiptDeadline > now) break;
+            it.remove();
+            overdue.add(p);
+        }
+        if (!overdue.isEmpty())
+            BefLog.d(TAG, "no receipt for " + overdue.size() + " messages in " + RECEIPT_TIMEOUT + "ms, sending again");
+        handler.removeCallbacks(checkReceipts);
+        for (Publication p : overdue)
+            send(p);
+        if (!inFlight.isEmpty()) {
+            handler.removeCallbacks(checkReceipts);
+            handler.postDelayed(checkReceipts, inFlight.values().iterator().next().receiptDeadline - now);
+        }
+        sendQueued();
+    }
+
+    private void fail(Publication p, String reason) {
+        BefLog.w(TAG, "message " + p.id + " failed: " + reason);
+        if (p.callback != null)
+            try {
+                p.callback.onFailed(p.id, reason);
+            } catch (Exception e) {
+                BefLog.e(TAG, e);
+            }
+    }
+}
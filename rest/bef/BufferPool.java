@@ -0,0 +1,109 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable byte arrays, organized in power-of-two size classes.
+ * Arrays are acquired on the reader thread and released on the master
+ * thread, so all access is synchronized.
+ */
+class BufferPool {
+
+   /// Smallest size class (1 KB).
+   private static final int MIN_CLASS_SHIFT = 10;
+
+   /// Arrays kept per size class, anything beyond is left to GC.
+   private final int mMaxPerClass;
+
+   /// Largest size class.
+   private final int mMaxClassShift;
+
+   private final ArrayDeque<byte[]>[] mClasses;
+
+   /**
+    * Create new pool.
+    *
+    * @param maxSize       Largest array size that is pooled.
+    * @param maxPerClass   Number of arrays kept per size class.
+    */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public BufferPool(int maxSize, int maxPerClass) {
+      mMaxPerClass = maxPerClass;
+      mMaxClassShift = Math.max(MIN_CLASS_SHIFT, shiftFor(maxSize));
+      mClasses = new ArrayDeque[mMaxClassShift - MIN_CLASS_SHIFT + 1];
+      for (int i = 0; i < mClasses.length; ++i) {
+         mClasses[i] = new ArrayDeque<byte[]>(maxPerClass);
+      }
+   }
+
+   /**
+    * Get an array of at least the requested size. The array may be
+    * larger than requested.
+    *
+    * @param size    Minimum size in octets.
+    * @return        Pooled or newly allocated array.
+    */
+   public byte[] acquire(int size) {
+      int shift = Math.max(MIN_CLASS_SHIFT, shiftFor(size));
+      if (shift > mMaxClassShift) {
+         return new byte[size];
+      }
+      synchronized (this) {
+         byte[] buf = mClasses[shift - MIN_CLASS_SHIFT].pollLast();
+         if (buf != null) {
+            return buf;
+         }
+      }
+      return new byte[1 << shift];
+   }
+
+   /**
+    * Return an array to the pool. Arrays of any size are accepted, they are
+    * filed under the largest size class they can serve.
+    *
+    * @param buf     Array to return, must not be used by the caller afterwards.
+    */
+   public void release(byte[] buf) {
+      if (buf == null || buf.length < (1 << MIN_CLASS_SHIFT)) {
+         return;
+      }
+      int shift = Math.min(31 - Integer.numberOfLeadingZeros(buf.length), mMaxClassShift);
+      synchronized (this) {
+         ArrayDeque<byte[]> cls = mClasses[shift - MIN_CLASS_SHIFT];
+         if (cls.size() < mMaxPerClass) {
+            cls.addLast(buf);
+         }
+      }
+   }
+
+   /**
+    * Drop all pooled arrays.
+    */
+   public synchronized void clear() {
+      for (ArrayDeque<byte[]> cls : mClasses) {
+         cls.clear();
+      }
+   }
+
+   /// Smallest shift so that (1 << shift) >= size.
+   private static int shiftFor(int size) {
+      return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+   }
+}
@@ -24,8 +24,10 @@ import java.nio.ByteBuffer;
 
 /**
  * OutputStream wrapping a ByteBuffer. This class internally allocates a
- * direct ByteBuffer for use i.e. with NIO for socket I/O. The ByteBuffer
+ * direct ByteBuffer for use i.e. with NIO for socket I/O, or a heap ByteBuffer
+ * whose backing array can be handed to a stream as is. The ByteBuffer
  * is automatically enlarged if needed (preserving contents when enlarged).
+ * Not synchronized, the stream is owned by a single (writer) thread.
  */
 class ByteBufferOutputStream extends OutputStream {
 
@@ -35,6 +37,9 @@ class ByteBufferOutputStream extends OutputStream {
    /// Amount to grow when ByteBuffer needs to be enlarged.
    private final int mGrowSize;
 
+   /// True for a direct ByteBuffer.
+   private final boolean mDirect;
+
    /// Internal ByteBuffer wrapped.
    private ByteBuffer mBuffer;
 
@@ -52,12 +57,42 @@ class ByteBufferOutputStream extends OutputStream {
     * @param growSize      When buffer needs to grow, enlarge by this amount.
     */
    public ByteBufferOutputStream(int initialSize, int growSize) {
+      this(initialSize, growSize, true);
+   }
+
+   /**
+    * Create a direct or heap allocated ByteBuffer wrapped as OutputStream.
+    *
+    * @param initialSize   Initial size of ByteBuffer.
+    * @param growSize      When buffer needs to grow, enlarge by this amount.
+    * @param direct        True for a direct ByteBuffer, false for a heap ByteBuffer.
+    */
+   public ByteBufferOutputStream(int initialSize, int growSize, boolean direct) {
       mInitialSize = initialSize;
       mGrowSize = growSize;
-      mBuffer = ByteBuffer.allocateDirect(mInitialSize);
+      mDirect = direct;
+      mBuffer = allocate(mInitialSize);
+      mBuffer.clear();
+   }
+
+   /**
+    * Wrap a given (direct or heap) ByteBuffer as OutputStream.
+    *
+    * @param buffer        Buffer to write to, i.e. taken from a ConnectionBufferPool.
+    * @param growSize      When buffer needs to grow, enlarge by this amount.
+    */
+   public ByteBufferOutputStream(ByteBuffer buffer, int growSize) {
+      mInitialSize = buffer.capacity();
+      mGrowSize = growSize;
+      mDirect = buffer.isDirect();
+      mBuffer = buffer;
       mBuffer.clear();
    }
 
+   private ByteBuffer allocate(int capacity) {
+      return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+   }
+
    /**
     * Get the underlying ByteBuffer.
     *
@@ -93,14 +128,14 @@ class ByteBufferOutputStream extends OutputStream {
     *
     * @param requestSize   Requested new size.
     */
-   public synchronized void expand(int requestSize) {
+   public void expand(int requestSize) {
 
       if (requestSize > mBuffer.capacity()) {
 
          ByteBuffer oldBuffer = mBuffer;
          int oldPosition = mBuffer.position();
          int newCapacity = ((requestSize / mGrowSize) + 1) * mGrowSize;
-         mBuffer = ByteBuffer.allocateDirect(newCapacity);
+         mBuffer = allocate(newCapacity);
          oldBuffer.clear();
          mBuffer.clear();
          mBuffer.put(oldBuffer);
@@ -114,7 +149,7 @@ class ByteBufferOutputStream extends OutputStream {
     * @param b  Byte to be written.
     */
    @Override
-   public synchronized void write(int b) throws IOException {
+   public void write(int b) throws IOException {
 
       if (mBuffer.position() + 1 > mBuffer.capacity()) {
          expand(mBuffer.capacity() + 1);
@@ -132,7 +167,7 @@ class ByteBufferOutputStream extends OutputStream {
     *                   ByteBuffer when necessary, preserving the contents.
     */
    @Override
-   public synchronized void write(byte[] bytes, int off, int len)
+   public void write(byte[] bytes, int off, int len)
          throws IOException {
 
       if (mBuffer.position() + len > mBuffer.capacity()) {
@@ -141,13 +176,41 @@ class ByteBufferOutputStream extends OutputStream {
       mBuffer.put(bytes, off, len);
    }
 
+   /**
+    * Write a chunk of bytes masked with a WebSockets frame mask. The bytes are
+    * copied in bulk and XOR-ed right within the underlying ByteBuffer, 8 octets
+    * at a time, so the source array is left untouched.
+    *
+    * @param bytes      Write bytes from this byte array.
+    * @param off        Start reading at this offset within byte array.
+    * @param len        Write this many bytes.
+    * @param mask       Frame mask, its big-endian octets are applied in turn.
+    */
+   public void writeMasked(byte[] bytes, int off, int len, int mask)
+         throws IOException {
+
+      int start = mBuffer.position();
+      write(bytes, off, len);
+
+      // mask repeats every 4 octets, so it applies to every 8 octet word from start the same
+      long mask64 = ((mask & 0xffffffffL) << 32) | (mask & 0xffffffffL);
+      int end = start + len;
+      int i = start;
+      for (; i + 8 <= end; i += 8) {
+         mBuffer.putLong(i, mBuffer.getLong(i) ^ mask64);
+      }
+      for (; i < end; ++i) {
+         mBuffer.put(i, (byte) (mBuffer.get(i) ^ (mask >>> (24 - 8 * ((i - start) & 3)))));
+      }
+   }
+
    /**
     * Write a complete byte array to the underlying ByteBuffer via this
     * OutputStream.
     *
     * @param bytes   Byte array to be written.
     */
-   public synchronized void write(byte[] bytes) throws IOException {
+   public void write(byte[] bytes) throws IOException {
       write(bytes, 0, bytes.length);
    }
 
@@ -158,7 +221,7 @@ class ByteBufferOutputStream extends OutputStream {
     * @param str     String to be written.
     * @throws IOException
     */
-   public synchronized void write(String str) throws IOException {
+   public void write(String str) throws IOException {
       write(str.getBytes("UTF-8"));
    }
 
@@ -167,7 +230,7 @@ class ByteBufferOutputStream extends OutputStream {
     *
     * @throws IOException
     */
-   public synchronized void crlf() throws IOException {
+   public void crlf() throws IOException {
       write(0x0d);
       write(0x0a);
    }
@@ -0,0 +1,130 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * Encoded WebSockets opening handshake request. The request only changes with the
+ * subscribe configuration, so it is built and encoded once and kept; every connect
+ * writes the cached bytes with a fresh Sec-WebSocket-Key patched in.
+ */
+class ClientHandshakeTemplate {
+
+   /// Length of a Sec-WebSocket-Key (16 random octets, Base64 encoded).
+   static final int KEY_LENGTH = 24;
+
+   /// Subscribe configuration the request was built from.
+   private final String mUrl;
+   private final List<NameValuePair> mHeaders;
+   private final WebSocketOptions mOptions;
+
+   /// Encoded request, with room for the key at mKeyOffset.
+   private final byte[] mBytes;
+   private final int mKeyOffset;
+
+
+   /**
+    * Build and encode request.
+    *
+    * @param message   Handshake request to encode.
+    * @param options   Options of the connection (the extensions offer depends on them).
+    * @param url       Subscribe url the request was made for.
+    * @param headers   Subscribe headers the request was made for.
+    */
+   public ClientHandshakeTemplate(WebSocketMessage.ClientHandshake message, WebSocketOptions options,
+                                  String url, List<NameValuePair> headers) throws UnsupportedEncodingException {
+      mUrl = url;
+      mHeaders = headers;
+      mOptions = options;
+
+      StringBuilder sb = new StringBuilder(512);
+      sb.append("GET ").append(message.mPath);
+      if (message.mQuery != null) {
+         sb.append('?').append(message.mQuery);
+      }
+      sb.append(" HTTP/1.1\r\n");
+      sb.append("Host: ").append(message.mHost).append("\r\n");
+      sb.append("Upgrade: WebSocket\r\n");
+      sb.append("Connection: Upgrade\r\n");
+      sb.append("Sec-WebSocket-Key: ");
+      int keyIndex = sb.length();
+      for (int i = 0; i < KEY_LENGTH; ++i) {
+         sb.append('=');
+      }
+      sb.append("\r\n");
+
+      if (message.mOrigin != null && !message.mOrigin.equals("")) {
+         sb.append("Origin: ").append(message.mOrigin).append("\r\n");
+      }
+
+      if (message.mSubprotocols != null && message.mSubprotocols.length > 0) {
+         sb.append("Sec-WebSocket-Protocol: ");
+         for (int i = 0; i < message.mSubprotocols.length; ++i) {
+            sb.append(message.mSubprotocols[i]);
+            if (i != message.mSubprotocols.length - 1) {
+               sb.append(", ");
+            }
+         }
+         sb.append("\r\n");
+      }
+
+      sb.append("Sec-WebSocket-Version: 13\r\n");
+
+      String extensions = PerMessageDeflate.offer(options);
+      if (extensions != null) {
+         sb.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+      }
+
+      // Header injection
+      if (message.mHeaderList != null) {
+         for (NameValuePair pair : message.mHeaderList) {
+            sb.append(pair.getName()).append(':').append(pair.getValue()).append("\r\n");
+         }
+      }
+      sb.append("\r\n");
+
+      String request = sb.toString();
+      mKeyOffset = request.substring(0, keyIndex).getBytes("UTF-8").length;
+      mBytes = request.getBytes("UTF-8");
+   }
+
+
+   /**
+    * Check whether the request was built for given subscribe configuration. Header
+    * list and options are compared by identity, befrest creates a new header list
+    * whenever the subscribe data changes.
+    */
+   public boolean isFor(String url, List<NameValuePair> headers, WebSocketOptions options) {
+      return mUrl != null && mUrl.equals(url) && mHeaders == headers && mOptions == options;
+   }
+
+
+   /**
+    * Write the request with given key.
+    *
+    * @param out    Send buffer.
+    * @param key    Sec-WebSocket-Key, KEY_LENGTH ASCII octets.
+    */
+   public void writeTo(ByteBufferOutputStream out, byte[] key) throws IOException {
+      out.write(mBytes, 0, mKeyOffset);
+      out.write(key, 0, KEY_LENGTH);
+      out.write(mBytes, mKeyOffset + KEY_LENGTH, mBytes.length - mKeyOffset - KEY_LENGTH);
+   }
+}
@@ -0,0 +1,144 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Blocking part of a connect: resolves the gateway host (through the {@link DnsCache}
+ * usually), then races its addresses
+ * through TCP connect and TLS handshake. Runs on a thread of its own and reports
+ * every stage to the master handler (the task as message object, stage in arg1),
+ * so BefrestConnection stays responsive and can time each stage out.
+ * <p/>
+ * A cancelled task still reports, the master ignores it and closes its socket.
+ */
+class ConnectTask extends Thread {
+    private static final String TAG = BefLog.TAG_PREF + "ConnectTask";
+
+    static final int STAGE_RESOLVE = 1;
+    static final int STAGE_CONNECT = 2;
+    static final int STAGE_DONE = 3;
+    static final int STAGE_FAILED = 4;
+
+    private final Handler mMaster;
+    private final GatewayResolver mResolver;
+    private final HappyEyeballsConnector mConnector;
+    private final String mHost;
+    private final int mPort;
+    private final int mConnectTimeout;
+
+    private volatile boolean mCancelled;
+
+    /// Connected socket (STAGE_DONE) or the error the connect failed with (STAGE_FAILED).
+    Socket mSocket;
+    Exception mError;
+
+    /// Stage timings in ms, TLS is 0 for plain sockets.
+    int mResolveTime;
+    int mTcpTime;
+    int mTlsTime;
+
+    /**
+     * @param master         handler stages are reported to
+     * @param connectTimeout ms for TCP connect and TLS handshake of all addresses together
+     */
+    ConnectTask(Handler master, GatewayResolver resolver, HappyEyeballsConnector connector, String host, int port, int connectTimeout) {
+        super("BefrestConnectTask");
+        mMaster = master;
+        mResolver = resolver;
+        mConnector = connector;
+        mHost = host;
+        mPort = port;
+        mConnectTimeout = connectTimeout;
+    }
+
+    @Override
+    public void run() {
+        try {
+            report(STAGE_RESOLVE);
+            long start = SystemClock.elapsedRealtime();
+            InetAddress[] addresses = mResolver.resolve(mHost).addresses;
+            mResolveTime = (int) (SystemClock.elapsedRealtime() - start);
+            if (mCancelled) throw new InterruptedIOException("connect cancelled");
+            report(STAGE_CONNECT);
+            HappyEyeballsConnector.Attempt winner = mConnector.connect(addresses, mHost, mPort, mConnectTimeout);
+            mTcpTime = winner.tcpTime;
+            mTlsTime = winner.tlsTime;
+            mSocket = winner.socket;
+            if (mCancelled) {
+                closeSocket();
+                throw new InterruptedIOException("connect cancelled");
+            }
+            report(STAGE_DONE);
+        } catch (IOException e) {
+            mError = e;
+            report(STAGE_FAILED);
+        } catch (Exception e) {
+            // e.g. SecurityException without INTERNET permission, the handler only expects IOException
+            mError = new IOException(e);
+            report(STAGE_FAILED);
+        } catch (AssertionError e) {
+            // android getsockname and similar bugs, reported as failed instead of killing the thread
+            mError = new IOException(e.getMessage(), e);
+            report(STAGE_FAILED);
+        }
+    }
+
+    private void report(int stage) {
+        Message msg = mMaster.obtainMessage();
+        msg.obj = this;
+        msg.arg1 = stage;
+        mMaster.sendMessage(msg);
+    }
+
+    /**
+     * Abandon the connect. A pending address race is aborted, a pending resolve
+     * can not be and is ignored when it returns.
+     */
+    void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    void closeSocket() {
+        if (mSocket == null) return;
+        try {
+            mSocket.close();
+        } catch (IOException | AssertionError e) {
+            BefLog.v(TAG, "closing abandoned socket: " + e);
+        }
+    }
+
+    static String stageName(int stage) {
+        switch (stage) {
+            case STAGE_RESOLVE:
+                return "resolve";
+            case STAGE_CONNECT:
+                return "connect";
+            default:
+                return "stage " + stage;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Buffers of a connection's reader and writer, kept across reconnects. Every
+ * connect creates a new reader and writer; they borrow their buffers here and
+ * give them back when they end, so a reconnect does not allocate (direct) memory
+ * again. Buffers start small and only grow when large frames or messages show
+ * up; the grown buffer is kept and handed out on the next connect.
+ * <p/>
+ * Buffers are borrowed and returned on reader and writer threads, all access is
+ * synchronized. Owned by {@link BefrestConnection}.
+ */
+class ConnectionBufferPool {
+   private static final String TAG = BefLog.TAG_PREF + "ConnectionBufferPool";
+
+   /// Initial size of receive (frame) and send buffers.
+   static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+   /// Initial size of message buffer.
+   static final int INITIAL_MESSAGE_SIZE = 4 * 1024;
+
+   /// Idle buffers, null while borrowed or not allocated yet.
+   private ByteBuffer mFrameBuffer;
+   private ByteBuffer mSendBuffer;
+   private byte[] mMessageBuffer;
+
+   /// Pool of delivered payloads (WebSocketOptions.setUsePooledPayloads()), created on first use.
+   private BufferPool mPayloadPool;
+
+
+   /**
+    * Borrow the receive buffer.
+    *
+    * @param direct  True for a direct buffer (socket channel), false for a heap buffer (socket stream).
+    * @return        Cleared buffer.
+    */
+   public synchronized ByteBuffer acquireFrameBuffer(boolean direct) {
+      ByteBuffer buffer = take(mFrameBuffer, direct);
+      mFrameBuffer = null;
+      return buffer;
+   }
+
+   /**
+    * Give the receive buffer back, it must not be used afterwards.
+    */
+   public synchronized void releaseFrameBuffer(ByteBuffer buffer) {
+      mFrameBuffer = keep(mFrameBuffer, buffer);
+   }
+
+   /**
+    * Borrow the send buffer.
+    *
+    * @param direct  True for a direct buffer (socket channel), false for a heap buffer (socket stream).
+    * @return        Cleared buffer.
+    */
+   public synchronized ByteBuffer acquireSendBuffer(boolean direct) {
+      ByteBuffer buffer = take(mSendBuffer, direct);
+      mSendBuffer = null;
+      return buffer;
+   }
+
+   /**
+    * Give the send buffer back, it must not be used afterwards.
+    */
+   public synchronized void releaseSendBuffer(ByteBuffer buffer) {
+      mSendBuffer = keep(mSendBuffer, buffer);
+   }
+
+   /**
+    * Borrow the array messages are assembled in.
+    */
+   public synchronized byte[] acquireMessageBuffer() {
+      byte[] buffer = mMessageBuffer;
+      mMessageBuffer = null;
+      return buffer != null ? buffer : new byte[INITIAL_MESSAGE_SIZE];
+   }
+
+   /**
+    * Give the message array back (possibly grown meanwhile), it must not be used afterwards.
+    */
+   public synchronized void releaseMessageBuffer(byte[] buffer) {
+      if (buffer != null && (mMessageBuffer == null || buffer.length > mMessageBuffer.length)) {
+         mMessageBuffer = buffer;
+      }
+   }
+
+   /**
+    * Get pool of delivered payloads.
+    *
+    * @param maxSize Largest payload size that is pooled.
+    */
+   public synchronized BufferPool getPayloadPool(int maxSize) {
+      if (mPayloadPool == null) {
+         mPayloadPool = new BufferPool(maxSize, 4);
+      }
+      return mPayloadPool;
+   }
+
+   /**
+    * Replace a receive buffer too small for a frame that is arriving. Buffers
+    * at least double, up to max. Received octets not consumed yet (from index
+    * to position()) are carried over to the start of the new buffer.
+    *
+    * @param buffer  Receive buffer in use.
+    * @param index   Index of first unconsumed octet.
+    * @param needed  Capacity wanted.
+    * @param max     Largest capacity allowed.
+    * @return        New buffer, or the given one when it can not grow.
+    */
+   public ByteBuffer growFrameBuffer(ByteBuffer buffer, int index, int needed, int max) {
+      int capacity = Math.min(max, Math.max(needed, buffer.capacity() * 2));
+      if (capacity <= buffer.capacity()) {
+         return buffer;
+      }
+      ByteBuffer grown = allocate(capacity, buffer.isDirect());
+      buffer.limit(buffer.position());
+      buffer.position(index);
+      grown.put(buffer);
+      BefLog.v(TAG, "receive buffer grown to " + capacity);
+      return grown;
+   }
+
+
+   private static ByteBuffer take(ByteBuffer idle, boolean direct) {
+      if (idle == null || idle.isDirect() != direct) {
+         return allocate(INITIAL_BUFFER_SIZE, direct);
+      }
+      idle.clear();
+      return idle;
+   }
+
+   /// The larger buffer is kept, the other one is left to GC.
+   private static ByteBuffer keep(ByteBuffer idle, ByteBuffer returned) {
+      if (returned == null) {
+         return idle;
+      }
+      return idle == null || returned.capacity() > idle.capacity() ? returned : idle;
+   }
+
+   private static ByteBuffer allocate(int capacity, boolean direct) {
+      return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+   }
+}
@@ -0,0 +1,200 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static rest.bef.BefrestPrefrences.*;
+
+/**
+ * Befrest owned cache of gateway addresses on top of a {@link GatewayResolver}.
+ * <ul>
+ * <li>Answers are served from cache till their TTL runs out.</li>
+ * <li>Expired answers are served for up to {@link #MAX_STALE} ms more while a fresh
+ * resolve runs in background (stale-while-revalidate), so DNS latency is off the
+ * connect path. When there is no answer at all, the caller waits for the resolve.</li>
+ * <li>{@link #prefetch(String)} refreshes answers about to expire, BefrestConnection
+ * calls it while connected so reconnects find a fresh answer.</li>
+ * <li>Last good addresses are saved to preferences and loaded as stale answers, a new
+ * process connects without waiting for DNS. They are saved only when they change.</li>
+ * </ul>
+ * Thread safe, resolve() is called by {@link ConnectTask} threads.
+ */
+class DnsCache implements GatewayResolver {
+    private static final String TAG = BefLog.TAG_PREF + "DnsCache";
+
+    /// How long past its TTL an answer is still served while being revalidated.
+    static final long MAX_STALE = 24 * 60 * 60 * 1000;
+
+    /// Answers expiring within this many ms are refreshed by prefetch().
+    static final long PREFETCH_AHEAD = 30 * 1000;
+
+    private final Context appContext;
+    private final GatewayResolver upstream;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /// Hosts being resolved in background.
+    private final Set<String> refreshing = new HashSet<>();
+
+    DnsCache(Context context, GatewayResolver upstream) {
+        this.appContext = context.getApplicationContext();
+        this.upstream = upstream;
+        load();
+    }
+
+    @Override
+    public Answer resolve(String host) throws IOException {
+        Entry entry = get(host);
+        long now = SystemClock.elapsedRealtime();
+        if (entry != null && now < entry.expires) {
+            BefLog.v(TAG, host + " served from cache");
+            return entry.answer(now);
+        }
+        if (entry != null && now < entry.expires + MAX_STALE) {
+            BefLog.v(TAG, host + " served stale, " + (now - entry.expires) + "ms expired. revalidating ...");
+            refreshInBackground(host);
+            return entry.answer(now);
+        }
+        return fetch(host);
+    }
+
+    /**
+     * Refresh host's answer in background if it expires within {@link #PREFETCH_AHEAD} ms.
+     */
+    void prefetch(String host) {
+        Entry entry = get(host);
+        if (entry == null || entry.expires - SystemClock.elapsedRealtime() < PREFETCH_AHEAD)
+            refreshInBackground(host);
+    }
+
+    /**
+     * @return ms till host's answer is due for prefetch, 0 if it is already
+     */
+    long timeToPrefetch(String host) {
+        Entry entry = get(host);
+        if (entry == null) return 0;
+        return Math.max(0, entry.expires - PREFETCH_AHEAD - SystemClock.elapsedRealtime());
+    }
+
+    private synchronized Entry get(String host) {
+        return entries.get(host);
+    }
+
+    private Answer fetch(String host) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Answer answer = upstream.resolve(host);
+        long now = SystemClock.elapsedRealtime();
+        BefLog.v(TAG, host + " resolved in " + (now - start) + "ms, ttl " + answer.ttl + "s");
+        synchronized (this) {
+            Entry previous = entries.put(host, new Entry(answer.addresses, now + answer.ttl * 1000L));
+            // the saved expiry only decides stale or not after a restart, not worth rewriting for
+            if (previous == null || !sameAddresses(previous.addresses, answer.addresses))
+                save();
+        }
+        return answer;
+    }
+
+    private static boolean sameAddresses(InetAddress[] a, InetAddress[] b) {
+        return new HashSet<>(Arrays.asList(a)).equals(new HashSet<>(Arrays.asList(b)));
+    }
+
+    private void refreshInBackground(final String host) {
+        synchronized (this) {
+            if (!refreshing.add(host))
+                return;
+        }
+        new Thread("BefrestDnsRefresh") {
+            @Override
+            public void run() {
+                try {
+                    fetch(host);
+                } catch (IOException e) {
+                    // keep serving what we have
+                    BefLog.v(TAG, "refreshing " + host + " failed: " + e);
+                } finally {
+                    synchronized (DnsCache.this) {
+                        refreshing.remove(host);
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Saved as lines of "host|wall clock expiry|address,address".
+     */
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        long wallOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(e.getKey()).append('|').append(e.getValue().expires + wallOffset).append('|');
+            InetAddress[] addresses = e.getValue().addresses;
+            for (int i = 0; i < addresses.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(addresses[i].getHostAddress());
+            }
+        }
+        saveString(appContext, PREF_GATEWAY_ADDRESSES, sb.toString());
+    }
+
+    private void load() {
+        String saved = getPrefs(appContext).getString(PREF_GATEWAY_ADDRESSES, "");
+        if (saved.length() == 0) return;
+        long wallOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        for (String line : saved.split("\n")) {
+            String[] parts = line.split("\\|");
+            if (parts.length != 3) continue;
+            try {
+                String[] literals = parts[2].split(",");
+                InetAddress[] addresses = new InetAddress[literals.length];
+                for (int i = 0; i < literals.length; i++)
+                    addresses[i] = InetAddress.getByAddress(parts[0], InetAddress.getByName(literals[i]).getAddress());
+                entries.put(parts[0], new Entry(addresses, Long.parseLong(parts[1]) - wallOffset));
+            } catch (UnknownHostException | NumberFormatException e) {
+                BefLog.w(TAG, "dropping saved addresses of " + parts[0] + ": " + e);
+            }
+        }
+        BefLog.v(TAG, "loaded saved addresses of " + entries.keySet());
+    }
+
+    private static final class Entry {
+        final InetAddress[] addresses;
+        /// elapsed realtime the TTL runs out
+        final long expires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+
+        Answer answer(long now) {
+            return new Answer(addresses, (int) Math.max(0, (expires - now) / 1000));
+        }
+    }
+}
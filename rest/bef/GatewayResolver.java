@@ -0,0 +1,64 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Resolves gateway host names. The system resolver is the default, the interface lets
+ * {@link DnsCache} sit on top of any other source (e.g. DNS over HTTPS, or a fixed
+ * table when testing offline).
+ */
+interface GatewayResolver {
+
+    /// TTL in seconds for answers of resolvers that do not expose one (the system resolver).
+    int DEFAULT_TTL = 5 * 60;
+
+    /**
+     * Resolve host.
+     *
+     * @return addresses of host, at least one
+     * @throws IOException if host could not be resolved
+     */
+    Answer resolve(String host) throws IOException;
+
+    /**
+     * Resolver of the platform, InetAddress.getAllByName().
+     */
+    GatewayResolver SYSTEM = new GatewayResolver() {
+        @Override
+        public Answer resolve(String host) throws IOException {
+            return new Answer(InetAddress.getAllByName(host), DEFAULT_TTL);
+        }
+    };
+
+    /**
+     * Resolved addresses and how long they may be used.
+     */
+    final class Answer {
+        final InetAddress[] addresses;
+        /// seconds
+        final int ttl;
+
+        Answer(InetAddress[] addresses, int ttl) {
+            this.addresses = addresses;
+            this.ttl = ttl;
+        }
+    }
+}
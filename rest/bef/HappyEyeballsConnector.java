@@ -0,0 +1,258 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Connects to a host by racing its addresses (Happy Eyeballs, RFC 8305). All A and
+ * AAAA records are tried, alternating address families, with a new attempt started
+ * every {@link #ATTEMPT_DELAY} ms or as soon as the previous one fails. The first
+ * socket through TCP connect and (for wss) TLS handshake wins, the others are closed.
+ * So a black-holed address costs a quarter second instead of the whole connect timeout.
+ * <p/>
+ * Attempts run on threads of their own, connect() blocks the caller till one wins
+ * or all fail. Used from {@link ConnectTask} threads, interrupting the caller cancels
+ * the race.
+ */
+class HappyEyeballsConnector {
+    private static final String TAG = BefLog.TAG_PREF + "HappyEyeballsConnector";
+
+    /// Delay before racing the next address (RFC 8305 recommends 250ms).
+    static final int ATTEMPT_DELAY = 250;
+
+    /// Number of recent connect times percentiles are computed over.
+    private static final int CONNECT_TIMES = 64;
+
+    private final SSLSocketFactory sslFactory;
+    private final boolean tcpNoDelay;
+
+    private final int[] connectTimes = new int[CONNECT_TIMES];
+    private int connectCount;
+
+    /**
+     * @param sslFactory factory to do a TLS handshake on top of TCP with (wss), null for plain sockets
+     * @param tcpNoDelay TCP_NODELAY option for connected sockets
+     */
+    HappyEyeballsConnector(SSLSocketFactory sslFactory, boolean tcpNoDelay) {
+        this.sslFactory = sslFactory;
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Connect to the first of given addresses to answer.
+     *
+     * @param addresses resolved addresses of host
+     * @param host      host name (for TLS server name and certificate check)
+     * @param timeout   ms for the whole connect
+     * @return the winning attempt, its socket connected and TCP and TLS times recorded
+     */
+    Attempt connect(InetAddress[] addresses, String host, int port, int timeout) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        List<InetAddress> ordered = interleaveFamilies(addresses);
+        LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+        List<Attempt> running = new ArrayList<>();
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        IOException lastError = null;
+        int next = 0;
+        try {
+            while (true) {
+                if (running.isEmpty() && next < ordered.size()) {
+                    running.add(startAttempt(ordered.get(next++), host, port, deadline, finished));
+                }
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (running.isEmpty() || remaining <= 0)
+                    break;
+                Attempt attempt = finished.poll(next < ordered.size() ? Math.min(ATTEMPT_DELAY, remaining) : remaining, TimeUnit.MILLISECONDS);
+                if (attempt == null) {
+                    // previous attempt is slow, race next address
+                    if (next < ordered.size())
+                        running.add(startAttempt(ordered.get(next++), host, port, deadline, finished));
+                    continue;
+                }
+                running.remove(attempt);
+                if (attempt.socket != null) {
+                    int connectTime = (int) (SystemClock.elapsedRealtime() - start);
+                    recordConnectTime(connectTime);
+                    BefLog.d(TAG, "connected to " + attempt.address + " in " + connectTime + "ms (attempt " + (ordered.indexOf(attempt.address.getAddress()) + 1)
+                            + "/" + ordered.size() + ")  p50: " + getConnectTimePercentile(50) + "ms  p90: " + getConnectTimePercentile(90) + "ms");
+                    return attempt;
+                }
+                BefLog.v(TAG, "connect to " + attempt.address + " failed: " + attempt.error);
+                if (attempt.error != null)
+                    lastError = attempt.error;
+                if (next < ordered.size())
+                    running.add(startAttempt(ordered.get(next++), host, port, deadline, finished));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("connect interrupted");
+        } finally {
+            for (Attempt attempt : running)
+                attempt.cancel();
+        }
+        throw lastError != null ? lastError : new SocketTimeoutException("connect timed out");
+    }
+
+    /**
+     * Order addresses alternating between IPv6 and IPv4, starting with the family of
+     * the first address (the one the resolver prefers).
+     */
+    static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses)
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) ordered.add(first.get(i));
+            if (i < second.size()) ordered.add(second.get(i));
+        }
+        return ordered;
+    }
+
+    private Attempt startAttempt(InetAddress address, String host, int port, long deadline, LinkedBlockingQueue<Attempt> finished) {
+        Attempt attempt = new Attempt(new InetSocketAddress(address, port), host, deadline, finished);
+        new Thread(attempt, "BefrestConnect").start();
+        return attempt;
+    }
+
+    private synchronized void recordConnectTime(int ms) {
+        connectTimes[connectCount % CONNECT_TIMES] = ms;
+        connectCount++;
+    }
+
+    /**
+     * Connect time percentile over the last successful connects.
+     *
+     * @param percentile 0 to 100
+     * @return ms, or -1 if nothing connected yet
+     */
+    synchronized int getConnectTimePercentile(int percentile) {
+        int n = Math.min(connectCount, CONNECT_TIMES);
+        if (n == 0) return -1;
+        int[] sorted = Arrays.copyOf(connectTimes, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    /**
+     * One address being connected to. Closing its socket from another thread
+     * (cancel()) aborts a pending connect or handshake.
+     */
+    class Attempt implements Runnable {
+        final InetSocketAddress address;
+        final String host;
+        final long deadline;
+        final LinkedBlockingQueue<Attempt> finished;
+
+        private volatile Socket pending;
+        private volatile boolean cancelled;
+        Socket socket;
+        IOException error;
+        /// ms spent in TCP connect and in TLS handshake (0 for plain sockets)
+        int tcpTime;
+        int tlsTime;
+
+        Attempt(InetSocketAddress address, String host, long deadline, LinkedBlockingQueue<Attempt> finished) {
+            this.address = address;
+            this.host = host;
+            this.deadline = deadline;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket = open();
+            } catch (IOException e) {
+                error = e;
+            } catch (Exception e) {
+                error = new IOException(e);
+            } catch (AssertionError e) {
+                if (!BefrestConnection.isAndroidGetsocknameError(e))
+                    throw e;
+                error = new IOException(e.getMessage(), e);
+            } finally {
+                if (cancelled)
+                    close(pending);
+                finished.add(this);
+            }
+        }
+
+        private Socket open() throws IOException {
+            int timeout = (int) Math.max(1, deadline - SystemClock.elapsedRealtime());
+            // plain sockets are opened through a channel so the reader can fill its frame buffer from it directly
+            Socket soc = sslFactory != null ? new Socket() : SocketChannel.open().socket();
+            pending = soc;
+            if (cancelled) throw new IOException("cancelled");
+            long start = SystemClock.elapsedRealtime();
+            soc.connect(address, timeout);
+            tcpTime = (int) (SystemClock.elapsedRealtime() - start);
+            soc.setTcpNoDelay(tcpNoDelay);
+            if (sslFactory == null)
+                return soc;
+            // host and port given here key the session cache, so a reconnect can resume the session
+            SSLSocket secSoc = (SSLSocket) sslFactory.createSocket(soc, host, address.getPort(), true);
+            pending = secSoc;
+            if (cancelled) throw new IOException("cancelled");
+            secSoc.setUseClientMode(true);
+            secSoc.setSoTimeout((int) Math.max(1, deadline - SystemClock.elapsedRealtime()));
+            start = SystemClock.elapsedRealtime();
+            secSoc.startHandshake();
+            tlsTime = (int) (SystemClock.elapsedRealtime() - start);
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, secSoc.getSession()))
+                throw new SSLPeerUnverifiedException("certificate does not match " + host);
+            secSoc.setSoTimeout(0);
+            return secSoc;
+        }
+
+        void cancel() {
+            cancelled = true;
+            close(pending);
+        }
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException | AssertionError e) {
+            BefLog.v(TAG, "closing connect attempt: " + e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental HTTP/1.1 response head parser for the WebSockets opening handshake.
+ * It is fed the growing receive buffer after every read and resumes scanning where
+ * it stopped, so every octet is looked at once however the head is split across reads.
+ * Parsing works on absolute indexes right within the buffer, nothing is moved or copied
+ * but header lines while decoding them.
+ */
+class HttpResponseParser {
+
+   /// Next index to scan for end of line.
+   private int mScanPos;
+
+   /// Index where the current line starts.
+   private int mLineStart;
+
+   /// Set once the empty line ending the head was parsed.
+   private boolean mComplete;
+
+   private int mStatusCode = -1;
+   private String mStatusMessage;
+
+   /// Response headers, names in lower case, repeated headers joined by ", ".
+   private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+   /// Line decoding buffer (grown on demand).
+   private char[] mLine = new char[128];
+
+
+   /**
+    * Parse response head received so far.
+    *
+    * @param buffer  Receive buffer, the response starts at index 0.
+    * @param end     Index of last received octet + 1.
+    * @return        Index right after the head (where frames start), or -1 when
+    *                the head is not complete yet.
+    */
+   public int parse(ByteBuffer buffer, int end) throws WebSocketException {
+      if (mComplete) {
+         return mScanPos;
+      }
+      for (int i = mScanPos; i < end; ++i) {
+         if (buffer.get(i) != '\n') {
+            continue;
+         }
+         int lineEnd = i;
+         if (lineEnd > mLineStart && buffer.get(lineEnd - 1) == '\r') {
+            --lineEnd;
+         }
+         int lineLen = lineEnd - mLineStart;
+         if (lineLen == 0 && mStatusCode >= 0) {
+            // empty line ends head
+            mComplete = true;
+            mScanPos = i + 1;
+            return mScanPos;
+         }
+         String line = decodeLine(buffer, mLineStart, lineLen);
+         if (mStatusCode < 0) {
+            parseStatusLine(line);
+         } else {
+            parseHeaderLine(line);
+         }
+         mLineStart = i + 1;
+      }
+      mScanPos = end;
+      return -1;
+   }
+
+
+   /**
+    * Status line, e.g. "HTTP/1.1 101 Switching Protocols".
+    */
+   private void parseStatusLine(String line) throws WebSocketException {
+      int sp1 = line.indexOf(' ');
+      if (!line.startsWith("HTTP/") || sp1 < 0) {
+         throw new WebSocketException("invalid HTTP status line");
+      }
+      int sp2 = line.indexOf(' ', sp1 + 1);
+      if (sp2 < 0) {
+         sp2 = line.length();
+      }
+      int code = 0;
+      for (int i = sp1 + 1; i < sp2; ++i) {
+         int digit = line.charAt(i) - '0';
+         if (digit < 0 || digit > 9) {
+            throw new WebSocketException("invalid HTTP status code");
+         }
+         code = code * 10 + digit;
+      }
+      if (sp2 - sp1 - 1 != 3) {
+         throw new WebSocketException("invalid HTTP status code");
+      }
+      mStatusCode = code;
+      mStatusMessage = sp2 < line.length() ? line.substring(sp2 + 1) : "";
+   }
+
+
+   /**
+    * Header line, "Name: value". Lines without colon are ignored.
+    */
+   private void parseHeaderLine(String line) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+         return;
+      }
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+      String value = line.substring(colon + 1).trim();
+      String previous = mHeaders.get(name);
+      mHeaders.put(name, previous == null ? value : previous + ", " + value);
+   }
+
+
+   /**
+    * Decode a line as ISO-8859-1, the charset of HTTP header octets.
+    */
+   private String decodeLine(ByteBuffer buffer, int index, int len) {
+      if (mLine.length < len) {
+         mLine = new char[Math.max(len, mLine.length * 2)];
+      }
+      for (int i = 0; i < len; ++i) {
+         mLine[i] = (char) (buffer.get(index + i) & 0xff);
+      }
+      return new String(mLine, 0, len);
+   }
+
+
+   public boolean isComplete() {
+      return mComplete;
+   }
+
+   public int getStatusCode() {
+      return mStatusCode;
+   }
+
+   public String getStatusMessage() {
+      return mStatusMessage;
+   }
+
+   /**
+    * Get response header.
+    *
+    * @param name    Header name in lower case.
+    * @return        Header value or null when not present.
+    */
+   public String getHeader(String name) {
+      return mHeaders.get(name);
+   }
+
+   /**
+    * Get all response headers.
+    *
+    * @return        Headers by lower case name.
+    */
+   public Map<String, String> getHeaders() {
+      return mHeaders;
+   }
+}
@@ -0,0 +1,83 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * ReadableByteChannel over an InputStream. Unlike Channels.newChannel(), this
+ * reads straight into the backing array of heap buffers, so bytes coming from
+ * a socket stream (i.e. an SSLSocket, which has no channel) land in the
+ * destination buffer with a single copy.
+ */
+class InputStreamChannel implements ReadableByteChannel {
+
+   private final InputStream mIn;
+
+   /// Scratch array, only used for destination buffers without backing array.
+   private byte[] mScratch;
+
+   private boolean mOpen = true;
+
+   /**
+    * Create a channel reading from given stream.
+    *
+    * @param in   Stream to read from.
+    */
+   public InputStreamChannel(InputStream in) {
+      mIn = in;
+   }
+
+   @Override
+   public int read(ByteBuffer dst) throws IOException {
+      int len = dst.remaining();
+      if (len == 0) {
+         return 0;
+      }
+      int read;
+      if (dst.hasArray()) {
+         read = mIn.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+         if (read > 0) {
+            dst.position(dst.position() + read);
+         }
+      } else {
+         if (mScratch == null || mScratch.length < len) {
+            mScratch = new byte[len];
+         }
+         read = mIn.read(mScratch, 0, len);
+         if (read > 0) {
+            dst.put(mScratch, 0, read);
+         }
+      }
+      return read;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return mOpen;
+   }
+
+   @Override
+   public void close() throws IOException {
+      mOpen = false;
+      mIn.close();
+   }
+}
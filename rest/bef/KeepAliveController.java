@@ -0,0 +1,213 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import android.content.Context;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static rest.bef.BefrestPrefrences.*;
+
+/**
+ * Learns how long a connection may idle on a network before its NAT or firewall
+ * mapping is dropped, so pings are sent as rarely as the network allows.
+ * <p/>
+ * For every network (see {@link BefrestInternal.Util#getNetworkKey(Context)}) the
+ * largest idle time a ping got through after ({@code safe}) and the smallest one a
+ * ping timed out after ({@code unsafe}) are kept. Next interval is the middle of
+ * the two, a binary search that stops once they are close enough and then sticks to
+ * {@code safe}. A ping that times out after an idle time known to be safe means the
+ * network changed, search backs off to half that time and starts over from there.
+ * <p/>
+ * Idle times are measured by BefrestConnection from the last received traffic to the
+ * ping, they may well exceed the interval when the device slept. What is learned is
+ * saved to preferences for the {@link #MAX_NETWORKS} most recently used networks.
+ * Used on BefrestThread only.
+ */
+class KeepAliveController {
+    private static final String TAG = BefLog.TAG_PREF + "KeepAliveController";
+
+    static final int MIN_INTERVAL = 30 * 1000;
+    static final int MAX_INTERVAL = 15 * 60 * 1000;
+
+    /// First interval tried on a network nothing is known about.
+    static final int INITIAL_INTERVAL = 120 * 1000;
+
+    /// Search stops when safe and unsafe are this close, or within an eighth of safe.
+    private static final int MIN_STEP = 10 * 1000;
+
+    private static final int MAX_NETWORKS = 20;
+
+    private final Context appContext;
+
+    /// Known networks, least recently used first.
+    private final LinkedHashMap<String, Bounds> networks = new LinkedHashMap<String, Bounds>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bounds> eldest) {
+            return size() > MAX_NETWORKS;
+        }
+    };
+
+    private String networkKey;
+    private Bounds current;
+
+    KeepAliveController(Context context) {
+        this.appContext = context.getApplicationContext();
+        load();
+    }
+
+    /**
+     * Select the network a connection was just opened on.
+     *
+     * @param key network key, null if unknown (what is learned then is not kept)
+     */
+    void onConnected(String key) {
+        networkKey = key;
+        current = key != null ? networks.get(key) : null;
+        if (current == null) {
+            current = new Bounds(MIN_INTERVAL, MAX_INTERVAL);
+            if (key != null) networks.put(key, current);
+        }
+        BefLog.v(TAG, "network " + key + ": " + current + ", interval " + getInterval() + "ms");
+    }
+
+    /**
+     * @return ms to let the connection idle before next ping
+     */
+    int getInterval() {
+        if (current == null)
+            return INITIAL_INTERVAL;
+        if (current.isConverged())
+            return current.safe;
+        if (current.safe == MIN_INTERVAL && current.unsafe == MAX_INTERVAL)
+            return INITIAL_INTERVAL;
+        return current.safe + (current.unsafe - current.safe) / 2;
+    }
+
+    /**
+     * A pong was received for a ping sent after idling {@code idle} ms. Safe is raised
+     * when the probed interval got through, or otherwise by a whole step only, so
+     * scheduling jitter neither creeps it up to unsafe nor rewrites preferences on
+     * every ping once the search converged.
+     */
+    void onPingSucceeded(long idle) {
+        if (current == null) return;
+        int interval = (int) Math.min(idle, MAX_INTERVAL);
+        boolean probed = !current.isConverged() && interval >= getInterval();
+        if (interval <= current.safe || !probed && interval < current.safe + current.tolerance() && interval < MAX_INTERVAL)
+            return;
+        current.safe = interval;
+        if (current.unsafe <= current.safe) {
+            // the network got more tolerant (or an earlier timeout was a hiccup)
+            current.unsafe = MAX_INTERVAL;
+        }
+        changed();
+    }
+
+    /**
+     * A keep alive ping sent after idling {@code idle} ms timed out. The sample is
+     * dropped when the idle time is too short to tell anything about the NAT, or
+     * when the device moved to another network since the connection was opened
+     * (the socket died with the old network, not of idling).
+     *
+     * @param key network key at the time of the timeout
+     */
+    void onPingFailed(long idle, String key) {
+        if (current == null) return;
+        if (idle < MIN_INTERVAL || key == null || !key.equals(networkKey)) {
+            BefLog.v(TAG, "ping timeout after " + idle + "ms idle on " + key + " not taken into account");
+            return;
+        }
+        int interval = (int) idle;
+        if (interval <= current.safe) {
+            // a safe interval failed, back off
+            current.safe = Math.max(MIN_INTERVAL, interval / 2);
+            current.unsafe = interval;
+        } else if (interval < current.unsafe && !current.isConverged()) {
+            // once converged safe is used, a timeout between safe and unsafe changes nothing
+            current.unsafe = interval;
+        } else
+            return;
+        changed();
+    }
+
+    private void changed() {
+        BefLog.v(TAG, "network " + networkKey + ": " + current + ", interval " + getInterval() + "ms");
+        if (networkKey != null)
+            save();
+    }
+
+    /**
+     * Saved as lines of "safe|unsafe|network key", least recently used first.
+     */
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Bounds> e : networks.entrySet()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(e.getValue().safe).append('|').append(e.getValue().unsafe).append('|')
+                    .append(e.getKey().replace('\n', ' '));
+        }
+        saveString(appContext, PREF_KEEP_ALIVE_INTERVALS, sb.toString());
+    }
+
+    private void load() {
+        String saved = getPrefs(appContext).getString(PREF_KEEP_ALIVE_INTERVALS, "");
+        if (saved.length() == 0) return;
+        for (String line : saved.split("\n")) {
+            String[] parts = line.split("\\|", 3);
+            if (parts.length != 3) continue;
+            try {
+                networks.put(parts[2], new Bounds(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+            } catch (NumberFormatException e) {
+                BefLog.w(TAG, "dropping saved keep alive interval of " + parts[2] + ": " + e);
+            }
+        }
+        for (Iterator<Bounds> it = networks.values().iterator(); it.hasNext(); ) {
+            Bounds b = it.next();
+            if (b.safe < MIN_INTERVAL || b.unsafe > MAX_INTERVAL || b.safe >= b.unsafe && b.safe != MAX_INTERVAL)
+                it.remove();
+        }
+    }
+
+    private static final class Bounds {
+        /// Largest idle ms a ping got through after.
+        int safe;
+        /// Smallest idle ms a ping timed out after, MAX_INTERVAL if none did.
+        int unsafe;
+
+        Bounds(int safe, int unsafe) {
+            this.safe = safe;
+            this.unsafe = unsafe;
+        }
+
+        int tolerance() {
+            return Math.max(MIN_STEP, safe / 8);
+        }
+
+        boolean isConverged() {
+            return unsafe - safe <= tolerance();
+        }
+
+        @Override
+        public String toString() {
+            return "safe " + safe + "ms, unsafe " + unsafe + "ms";
+        }
+    }
+}
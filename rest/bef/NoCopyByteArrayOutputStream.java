@@ -19,6 +19,7 @@ package rest.bef;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * OutputStream backed by a byte array. This class provides copyless access
@@ -42,6 +43,51 @@ class NoCopyByteArrayOutputStream extends ByteArrayOutputStream {
       super(size);
    }
 
+   /**
+    * Create new OutputStream backed by given byte array.
+    *
+    * @param buffer  Initial underlying byte array (i.e. taken from a BufferPool).
+    */
+   public NoCopyByteArrayOutputStream(byte[] buffer) {
+      super(0);
+      buf = buffer;
+   }
+
+   /**
+    * Write a chunk of a ByteBuffer, without going through an intermediate
+    * array. The position of the ByteBuffer is left untouched.
+    *
+    * @param src     Buffer to copy from.
+    * @param index   Absolute index within src to start copying at.
+    * @param len     Number of octets to copy.
+    */
+   public void write(ByteBuffer src, int index, int len) {
+      if (count + len > buf.length) {
+         byte[] newBuf = new byte[Math.max(buf.length << 1, count + len)];
+         System.arraycopy(buf, 0, newBuf, 0, count);
+         buf = newBuf;
+      }
+      int oldPosition = src.position();
+      src.position(index);
+      src.get(buf, count, len);
+      src.position(oldPosition);
+      count += len;
+   }
+
+   /**
+    * Hand out the underlying byte array by reference and continue with
+    * a replacement array. The stream is empty afterwards.
+    *
+    * @param replacement   New underlying byte array.
+    * @return              Previous underlying byte array, holding size() octets.
+    */
+   public byte[] detach(byte[] replacement) {
+      byte[] old = buf;
+      buf = replacement;
+      count = 0;
+      return old;
+   }
+
    /**
     * Wraps the underyling byte array into an InputStream.
     *
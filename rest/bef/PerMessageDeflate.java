@@ -0,0 +1,137 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.util.Locale;
+
+/**
+ * permessage-deflate extension (RFC 7692) parameters: the offer sent in the
+ * client handshake and the parameters accepted by the server.
+ *
+ * java.util.zip always compresses with a 32K (15 bits) window, so the client
+ * never offers client_max_window_bits and fails the connection when a server
+ * asks for a smaller client window anyway.
+ */
+class PerMessageDeflate {
+
+   static final String EXTENSION_NAME = "permessage-deflate";
+
+   /// Tail every compressed message ends with, stripped on the wire.
+   static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+   /// Server resets its compression context after each message.
+   boolean mServerNoContextTakeover;
+
+   /// Client has to reset its compression context after each message.
+   boolean mClientNoContextTakeover;
+
+   /// LZ77 window bits used by server.
+   int mServerMaxWindowBits = 15;
+
+   /**
+    * Build Sec-WebSocket-Extensions offer for given options.
+    *
+    * @param options    WebSockets options.
+    * @return           Header value, or null when extension is disabled.
+    */
+   static String offer(WebSocketOptions options) {
+      if (!options.getPerMessageDeflate()) {
+         return null;
+      }
+      StringBuilder sb = new StringBuilder(EXTENSION_NAME);
+      if (options.getClientNoContextTakeover()) {
+         sb.append("; client_no_context_takeover");
+      }
+      if (options.getServerNoContextTakeover()) {
+         sb.append("; server_no_context_takeover");
+      }
+      if (options.getServerMaxWindowBits() < 15) {
+         sb.append("; server_max_window_bits=").append(options.getServerMaxWindowBits());
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Process Sec-WebSocket-Extensions header of server handshake.
+    *
+    * @param header     Header value or null when not present.
+    * @param options    WebSockets options the offer was built from.
+    * @return           Accepted parameters, or null when extension was not accepted.
+    */
+   static PerMessageDeflate accept(String header, WebSocketOptions options) throws WebSocketException {
+      if (header == null) {
+         return null;
+      }
+      PerMessageDeflate accepted = null;
+      for (String extension : header.split(",")) {
+         String[] params = extension.split(";");
+         if (!EXTENSION_NAME.equals(params[0].trim().toLowerCase(Locale.US))) {
+            throw new WebSocketException("server accepted extension not offered: " + params[0].trim());
+         }
+         if (!options.getPerMessageDeflate() || accepted != null) {
+            throw new WebSocketException("server accepted " + EXTENSION_NAME + " not offered");
+         }
+         accepted = new PerMessageDeflate();
+         accepted.mClientNoContextTakeover = options.getClientNoContextTakeover();
+         for (int i = 1; i < params.length; ++i) {
+            String param = params[i].trim();
+            String value = null;
+            int eq = param.indexOf('=');
+            if (eq >= 0) {
+               value = param.substring(eq + 1).trim();
+               if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                  value = value.substring(1, value.length() - 1);
+               }
+               param = param.substring(0, eq).trim();
+            }
+            param = param.toLowerCase(Locale.US);
+            if (param.equals("server_no_context_takeover")) {
+               accepted.mServerNoContextTakeover = true;
+            } else if (param.equals("client_no_context_takeover")) {
+               accepted.mClientNoContextTakeover = true;
+            } else if (param.equals("server_max_window_bits")) {
+               accepted.mServerMaxWindowBits = parseWindowBits(value);
+            } else if (param.equals("client_max_window_bits")) {
+               // not offered, and a smaller window can not be honored by java.util.zip
+               throw new WebSocketException(EXTENSION_NAME + ": client_max_window_bits not offered");
+            } else {
+               throw new WebSocketException(EXTENSION_NAME + ": unknown parameter " + param);
+            }
+         }
+      }
+      return accepted;
+   }
+
+   private static int parseWindowBits(String value) throws WebSocketException {
+      try {
+         int bits = Integer.parseInt(value);
+         if (bits >= 8 && bits <= 15) {
+            return bits;
+         }
+      } catch (NumberFormatException ignored) {
+      }
+      throw new WebSocketException(EXTENSION_NAME + ": invalid window bits " + value);
+   }
+
+   @Override
+   public String toString() {
+      return EXTENSION_NAME + " (server_no_context_takeover=" + mServerNoContextTakeover
+            + ", client_no_context_takeover=" + mClientNoContextTakeover
+            + ", server_max_window_bits=" + mServerMaxWindowBits + ")";
+   }
+}
@@ -0,0 +1,39 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package rest.bef;
+
+/**
+ * Receives the outcome of a message published with {@link Befrest#publish(String, PublishCallback)}.
+ * Methods are called on befrest's background thread, do not block in them.
+ */
+public interface PublishCallback {
+
+    /**
+     * Server has sent a receipt for the published message.
+     *
+     * @param publishId id returned by publish()
+     */
+    void onDelivered(String publishId);
+
+    /**
+     * Message could not be delivered and will not be retried.
+     *
+     * @param publishId id returned by publish()
+     * @param reason    why delivery failed
+     */
+    void onFailed(String publishId, String reason);
+}
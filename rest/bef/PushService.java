@@ -204,6 +204,7 @@ public class PushService extends Service {
         befrestHandlerThread = new HandlerThread("BefrestThread");
         befrestHandlerThread.start();
         mConnection = new BefrestConnection(this, befrestHandlerThread.getLooper(), wscHandler, befrestProxy.getSubscribeUri(), befrestProxy.getSubscribeHeaders());
+        befrestActual.connection = mConnection;
         registerBroadCastReceivers();
         handler = new Handler(befrestHandlerThread.getLooper()) {
             @Override
@@ -295,6 +296,7 @@ public class PushService extends Service {
     public void onDestroy() {
         BefLog.v(TAG, "PushService: " + System.identityHashCode(this) + "==================onDestroy()_START===============");
         cancelFutureRetry();
+        befrestActual.connection = null;
         mConnection.forward(new BefrestEvent(BefrestEvent.Type.DISCONNECT));
         mConnection.forward(new BefrestEvent(BefrestEvent.Type.STOP));
         try {
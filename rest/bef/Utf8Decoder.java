@@ -0,0 +1,135 @@
+/******************************************************************************
+ * Copyright 2015-2016 Befrest
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package rest.bef;
+
+import java.nio.ByteBuffer;
+
+import static rest.bef.Utf8Validator.ACCEPT;
+import static rest.bef.Utf8Validator.DFA;
+import static rest.bef.Utf8Validator.REJECT;
+
+/**
+ *  Incremental UTF-8 decoder that validates and decodes in one pass.
+ *  Decoded UTF-16 is appended to a reusable char array, so a message
+ *  arriving in any number of chunks is walked exactly once and results
+ *  in no allocation besides the final String.
+ *
+ *  Uses the same DFA as Utf8Validator ("Flexible and Economical UTF-8
+ *  Decoder" by Bjoern Hoehrmann), with the codepoint accumulation it
+ *  was designed for.
+ */
+class Utf8Decoder {
+
+   private int mState;
+   private int mCodepoint;
+
+   private char[] mChars;
+   private int mLength;
+
+   /**
+    * Create new incremental UTF-8 decoder.
+    *
+    * @param initialCapacity  Initial size of decoded character buffer.
+    */
+   public Utf8Decoder(int initialCapacity) {
+      mChars = new char[initialCapacity];
+      reset();
+   }
+
+   /**
+    * Reset decoder state to begin decoding of new UTF-8 stream.
+    * The character buffer is kept for reuse.
+    */
+   public void reset() {
+      mState = ACCEPT;
+      mCodepoint = 0;
+      mLength = 0;
+   }
+
+   /**
+    * Check if incremental decoding (currently) has ended on
+    * a complete encoded Unicode codepoint.
+    *
+    * @return        True, iff currently ended on codepoint.
+    */
+   public boolean isValid() {
+      return mState == ACCEPT;
+   }
+
+   /**
+    * Number of UTF-16 chars decoded so far.
+    */
+   public int length() {
+      return mLength;
+   }
+
+   /**
+    * Validate and decode a chunk of octets, right within a ByteBuffer.
+    * The buffer position is not changed.
+    *
+    * @param data    Buffer which contains chunk to decode.
+    * @param index   Absolute index within buffer where to continue with decoding.
+    * @param len     Length in octets to decode within buffer.
+    * @return        False as soon as UTF-8 violation occurs, true otherwise.
+    */
+   public boolean decode(ByteBuffer data, int index, int len) {
+      // every octet decodes to at most one UTF-16 char, plus one for a
+      // surrogate pair completed by the first octets of this chunk
+      if (mLength + len + 1 > mChars.length) {
+         char[] chars = new char[Math.max(mChars.length << 1, mLength + len + 1)];
+         System.arraycopy(mChars, 0, chars, 0, mLength);
+         mChars = chars;
+      }
+      final char[] chars = mChars;
+      final int end = index + len;
+      int n = mLength;
+      for (int i = index; i < end; ++i) {
+         int b = data.get(i);
+         if (b >= 0 && mState == ACCEPT) {
+            // ASCII
+            chars[n++] = (char) b;
+            continue;
+         }
+         b &= 0xff;
+         int type = DFA[b];
+         mCodepoint = (mState != ACCEPT) ? (b & 0x3f) | (mCodepoint << 6) : (0xff >> type) & b;
+         mState = DFA[256 + (mState << 4) + type];
+         if (mState == ACCEPT) {
+            if (mCodepoint < 0x10000) {
+               chars[n++] = (char) mCodepoint;
+            } else {
+               chars[n++] = (char) (0xd7c0 + (mCodepoint >> 10));
+               chars[n++] = (char) (0xdc00 + (mCodepoint & 0x3ff));
+            }
+         } else if (mState == REJECT) {
+            mLength = n;
+            return false;
+         }
+      }
+      mLength = n;
+      return true;
+   }
+
+   /**
+    * Build a String from the chars decoded so far.
+    */
+   @Override
+   public String toString() {
+      return new String(mChars, 0, mLength);
+   }
+}
@@ -17,6 +17,8 @@
 
 package rest.bef;
 
+import java.nio.ByteBuffer;
+
 
 /**
  *  Incremental UTF-8 validator. The validator runs with constant memory
@@ -26,11 +28,13 @@ package rest.bef;
  *
  *  Implements the algorithm "Flexible and Economical UTF-8 Decoder" by
  *  Bjoern Hoehrmann (http://bjoern.hoehrmann.de/utf-8/decoder/dfa/).
+ *  Runs of ASCII between complete codepoints are skipped 8 octets at a
+ *  time, the DFA only runs from the first non-ASCII octet on.
  */
 class Utf8Validator {
 
-   /// DFA state transitions (14 x 32 = 448).
-   private static final int[] DFA = {
+   /// DFA state transitions (14 x 32 = 448), shared with Utf8Decoder.
+   static final int[] DFA = {
       0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0, // 00..1f
       0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0, // 20..3f
       0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0, // 40..5f
@@ -47,8 +51,11 @@ class Utf8Validator {
       1,3,1,1,1,1,1,3,1,3,1,1,1,1,1,1,1,3,1,1,1,1,1,1,1,1,1,1,1,1,1,1  // s7..s8
    };
 
-   private static final int ACCEPT = 0;
-   private static final int REJECT = 1;
+   static final int ACCEPT = 0;
+   static final int REJECT = 1;
+
+   /// High bit of every octet in a long word.
+   private static final long HIGH_BITS = 0x8080808080808080L;
 
    private int mState;
    private int mPos;
@@ -101,12 +108,64 @@ class Utf8Validator {
     * @return        False as soon as UTF-8 violation occurs, true otherwise.
     */
    public boolean validate(byte[] data, int off, int len) {
-      for (int i = off; i < off + len; ++i) {
-         mState = DFA[256 + (mState << 4) + DFA[(int) (0xff & data[i])]];
+      final int end = off + len;
+      int i = off;
+      while (i < end) {
+         if (mState == ACCEPT) {
+            // ASCII fast path, 8 octets at a time
+            while (i + 8 <= end && ((data[i] | data[i + 1] | data[i + 2] | data[i + 3]
+                  | data[i + 4] | data[i + 5] | data[i + 6] | data[i + 7]) & 0x80) == 0) {
+               i += 8;
+            }
+            while (i < end && data[i] >= 0) {
+               ++i;
+            }
+            if (i == end) {
+               break;
+            }
+         }
+         mState = DFA[256 + (mState << 4) + DFA[0xff & data[i]]];
+         if (mState == REJECT) {
+            mPos += i - off;
+            return false;
+         }
+         ++i;
+      }
+      mPos += len;
+      return true;
+   }
+
+   /**
+    * Validate a chunk of octets for UTF-8, right within a ByteBuffer
+    * (i.e. a direct frame buffer). The buffer position is not changed.
+    *
+    * @param data    Buffer which contains chunk to validate.
+    * @param index   Absolute index within buffer where to continue with validation.
+    * @param len     Length in octets to validate within buffer.
+    * @return        False as soon as UTF-8 violation occurs, true otherwise.
+    */
+   public boolean validate(ByteBuffer data, int index, int len) {
+      final int end = index + len;
+      int i = index;
+      while (i < end) {
+         if (mState == ACCEPT) {
+            // ASCII fast path, one long word (8 octets) at a time
+            while (i + 8 <= end && (data.getLong(i) & HIGH_BITS) == 0) {
+               i += 8;
+            }
+            while (i < end && data.get(i) >= 0) {
+               ++i;
+            }
+            if (i == end) {
+               break;
+            }
+         }
+         mState = DFA[256 + (mState << 4) + DFA[0xff & data.get(i)]];
          if (mState == REJECT) {
-            mPos += i;
+            mPos += i - index;
             return false;
          }
+         ++i;
       }
       mPos += len;
       return true;
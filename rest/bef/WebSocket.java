@@ -109,6 +109,37 @@ interface WebSocket {
          */
         public void onBinaryMessage(byte[] payload);
 
+        /**
+         * Fired when a text message has been received raw into a pooled
+         * buffer. The buffer goes back to the pool when this returns.
+         *
+         * @param payload Pooled buffer holding the raw UTF-8 payload.
+         * @param length  Payload length within buffer.
+         */
+        public void onRawTextMessage(byte[] payload, int length);
+
+        /**
+         * Fired when a binary message has been received into a pooled
+         * buffer. The buffer goes back to the pool when this returns.
+         *
+         * @param payload Pooled buffer holding the payload.
+         * @param length  Payload length within buffer.
+         */
+        public void onBinaryMessage(byte[] payload, int length);
+
+        /**
+         * Fired for each fragment of a binary or raw text message when
+         * incoming messages are streamed. The reader blocks while all
+         * fragment buffers are being handled, so a slow handler slows
+         * down receiving instead of queueing data.
+         *
+         * @param text    True for a text message (raw UTF-8, a code point may span fragments).
+         * @param payload Fragment buffer, only valid until this returns, or null.
+         * @param length  Fragment length within buffer.
+         * @param last    True for the final fragment of the message.
+         */
+        public void onMessageFragment(boolean text, byte[] payload, int length, boolean last);
+
         /**
          * Fired when a pong message has been received.
          */
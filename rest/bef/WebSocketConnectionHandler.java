@@ -17,6 +17,8 @@
 
 package rest.bef;
 
+import java.util.Arrays;
+
 /**
  * WebSockets event handler. Users will usually provide an instance of a class
  * derived from this to handle WebSockets received messages and open/close events
@@ -66,6 +68,39 @@ class WebSocketConnectionHandler implements WebSocket.ConnectionHandler {
     public void onBinaryMessage(byte[] payload) {
     }
 
+    /**
+     * Fired when a text message has been received raw into a pooled
+     * buffer. Default copies the payload out and calls onRawTextMessage(byte[]).
+     *
+     * @param payload Pooled buffer, only valid until this returns.
+     * @param length  Payload length within buffer.
+     */
+    public void onRawTextMessage(byte[] payload, int length) {
+        onRawTextMessage(Arrays.copyOf(payload, length));
+    }
+
+    /**
+     * Fired when a binary message has been received into a pooled
+     * buffer. Default copies the payload out and calls onBinaryMessage(byte[]).
+     *
+     * @param payload Pooled buffer, only valid until this returns.
+     * @param length  Payload length within buffer.
+     */
+    public void onBinaryMessage(byte[] payload, int length) {
+        onBinaryMessage(Arrays.copyOf(payload, length));
+    }
+
+    /**
+     * Fired for each fragment of a streamed binary or raw text message.
+     *
+     * @param text    True for a text message.
+     * @param payload Fragment buffer, only valid until this returns, or null.
+     * @param length  Fragment length within buffer.
+     * @param last    True for the final fragment of the message.
+     */
+    public void onMessageFragment(boolean text, byte[] payload, int length, boolean last) {
+    }
+
     /**
      * Fired when connection was refreshed
      */
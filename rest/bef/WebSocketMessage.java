@@ -17,7 +17,12 @@
 
 package rest.bef;
 
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 
 
 /**
@@ -59,10 +64,32 @@ class WebSocketMessage {
    /// Initial WebSockets handshake (server response).
    public static class ServerHandshake extends Message {
 	   public boolean mSuccess;
+
+	   /// permessage-deflate parameters accepted by server, or null.
+	   public PerMessageDeflate mDeflate;
+
+	   /// Response headers by lower case name.
+	   public Map<String, String> mHeaders;
 	   
 	   public ServerHandshake(boolean success) {
 		   mSuccess = success;
 	   }
+
+	   public ServerHandshake(boolean success, PerMessageDeflate deflate, Map<String, String> headers) {
+		   mSuccess = success;
+		   mDeflate = deflate;
+		   mHeaders = headers;
+	   }
+   }
+
+   /// Messages decoded from one socket read, in order.
+   public static class Batch extends Message {
+
+      public List<Message> mMessages;
+
+      Batch(List<Message> messages) {
+         mMessages = messages;
+      }
    }
 
    /// WebSockets connection lost
@@ -114,9 +141,28 @@ class WebSocketMessage {
    public static class RawTextMessage extends Message {
 
       public byte[] mPayload;
+      public int mLength;
+      public BufferPool mPool;
 
       RawTextMessage(byte[] payload) {
          mPayload = payload;
+         mLength = payload != null ? payload.length : 0;
+      }
+
+      /// Received into a pooled buffer, only the first length octets are payload.
+      RawTextMessage(byte[] payload, int length, BufferPool pool) {
+         mPayload = payload;
+         mLength = length;
+         mPool = pool;
+      }
+
+      /// Give a pooled payload buffer back, payload must not be used afterwards.
+      public void release() {
+         if (mPool != null) {
+            mPool.release(mPayload);
+            mPool = null;
+            mPayload = null;
+         }
       }
    }
 
@@ -124,9 +170,75 @@ class WebSocketMessage {
    public static class BinaryMessage extends Message {
 
       public byte[] mPayload;
+      public int mLength;
+      public BufferPool mPool;
 
       BinaryMessage(byte[] payload) {
          mPayload = payload;
+         mLength = payload != null ? payload.length : 0;
+      }
+
+      /// Received into a pooled buffer, only the first length octets are payload.
+      BinaryMessage(byte[] payload, int length, BufferPool pool) {
+         mPayload = payload;
+         mLength = length;
+         mPool = pool;
+      }
+
+      /// Give a pooled payload buffer back, payload must not be used afterwards.
+      public void release() {
+         if (mPool != null) {
+            mPool.release(mPayload);
+            mPool = null;
+            mPayload = null;
+         }
+      }
+   }
+
+   /// Binary or raw text message to send, read from source while it is sent in fragments.
+   public static class StreamMessage extends Message {
+
+      public boolean mText;
+      public ReadableByteChannel mSource;
+
+      /// Source must be blocking, it is read till end of stream and closed by the writer.
+      StreamMessage(boolean text, ReadableByteChannel source) {
+         if (source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+            throw new IllegalArgumentException("stream source must be a blocking channel");
+         }
+         mText = text;
+         mSource = source;
+      }
+
+      StreamMessage(boolean text, InputStream source) {
+         this(text, new InputStreamChannel(source));
+      }
+   }
+
+   /// Part of a binary or raw text message streamed as it is received.
+   public static class MessageFragment extends Message {
+
+      public boolean mText;
+      public byte[] mPayload;
+      public int mLength;
+      public boolean mLast;
+      private BlockingQueue<byte[]> mFree;
+
+      MessageFragment(boolean text, byte[] payload, int length, boolean last, BlockingQueue<byte[]> free) {
+         mText = text;
+         mPayload = payload;
+         mLength = length;
+         mLast = last;
+         mFree = free;
+      }
+
+      /// Give the fragment buffer back to the reader, payload must not be used afterwards.
+      public void release() {
+         if (mFree != null && mPayload != null) {
+            mFree.offer(mPayload);
+         }
+         mFree = null;
+         mPayload = null;
       }
    }
 
@@ -35,6 +35,13 @@ class WebSocketOptions {
    private int mSocketConnectTimeout;
    private boolean mValidateIncomingUtf8;
    private boolean mMaskClientFrames;
+   private boolean mUsePooledPayloads;
+   private boolean mPerMessageDeflate;
+   private boolean mClientNoContextTakeover;
+   private boolean mServerNoContextTakeover;
+   private int mServerMaxWindowBits;
+   private boolean mStreamIncomingMessages;
+   private int mStreamFragmentSize;
 //   private int mReconnectInterval;
 
 
@@ -52,6 +59,13 @@ class WebSocketOptions {
       mSocketConnectTimeout = 6000;
       mValidateIncomingUtf8 = true;
       mMaskClientFrames = true;
+      mUsePooledPayloads = false;
+      mPerMessageDeflate = true;
+      mClientNoContextTakeover = false;
+      mServerNoContextTakeover = false;
+      mServerMaxWindowBits = 15;
+      mStreamIncomingMessages = false;
+      mStreamFragmentSize = 16 * 1024;
 //      mReconnectInterval = 0;  // no reconnection by default
    }
 
@@ -70,6 +84,13 @@ class WebSocketOptions {
       mSocketConnectTimeout = other.mSocketConnectTimeout;
       mValidateIncomingUtf8 = other.mValidateIncomingUtf8;
       mMaskClientFrames = other.mMaskClientFrames;
+      mUsePooledPayloads = other.mUsePooledPayloads;
+      mPerMessageDeflate = other.mPerMessageDeflate;
+      mClientNoContextTakeover = other.mClientNoContextTakeover;
+      mServerNoContextTakeover = other.mServerNoContextTakeover;
+      mServerMaxWindowBits = other.mServerMaxWindowBits;
+      mStreamIncomingMessages = other.mStreamIncomingMessages;
+      mStreamFragmentSize = other.mStreamFragmentSize;
 //      mReconnectInterval = other.mReconnectInterval;
    }
 
@@ -258,6 +279,165 @@ class WebSocketOptions {
    public boolean getMaskClientFrames() {
       return mMaskClientFrames;
    }
+
+   /**
+    * Controls whether raw text and binary messages are received into
+    * pooled buffers. Pooled payloads are only valid until the message
+    * is released, which the connection does right after dispatching it.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to receive into pooled buffers.
+    */
+   public void setUsePooledPayloads(boolean enabled) {
+      mUsePooledPayloads = enabled;
+   }
+
+   /**
+    * Get pooled payloads option.
+    *
+    * @return        True, iff payloads are received into pooled buffers.
+    */
+   public boolean getUsePooledPayloads() {
+      return mUsePooledPayloads;
+   }
+
+   /**
+    * Controls whether permessage-deflate compression (RFC 7692) is
+    * offered in the handshake. Servers not supporting it just ignore
+    * the offer.
+    *
+    * DEFAULT: true
+    *
+    * @param enabled   Set true to offer permessage-deflate.
+    */
+   public void setPerMessageDeflate(boolean enabled) {
+      mPerMessageDeflate = enabled;
+   }
+
+   /**
+    * Get permessage-deflate option.
+    *
+    * @return        True, iff permessage-deflate is offered.
+    */
+   public boolean getPerMessageDeflate() {
+      return mPerMessageDeflate;
+   }
+
+   /**
+    * Controls whether the client resets its compression context after
+    * each message. Costs compression ratio, saves the 32K window memory
+    * between messages on server side.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to offer client_no_context_takeover.
+    */
+   public void setClientNoContextTakeover(boolean enabled) {
+      mClientNoContextTakeover = enabled;
+   }
+
+   /**
+    * Get client_no_context_takeover option.
+    *
+    * @return        True, iff client_no_context_takeover is offered.
+    */
+   public boolean getClientNoContextTakeover() {
+      return mClientNoContextTakeover;
+   }
+
+   /**
+    * Controls whether the server is asked to reset its compression
+    * context after each message.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to offer server_no_context_takeover.
+    */
+   public void setServerNoContextTakeover(boolean enabled) {
+      mServerNoContextTakeover = enabled;
+   }
+
+   /**
+    * Get server_no_context_takeover option.
+    *
+    * @return        True, iff server_no_context_takeover is offered.
+    */
+   public boolean getServerNoContextTakeover() {
+      return mServerNoContextTakeover;
+   }
+
+   /**
+    * Set LZ77 window bits (8..15) the server is asked to compress with.
+    * Smaller windows save memory on both sides at some compression cost.
+    *
+    * DEFAULT: 15
+    *
+    * @param bits      Window bits, 15 does not limit the server.
+    */
+   public void setServerMaxWindowBits(int bits) {
+      if (bits >= 8 && bits <= 15) {
+         mServerMaxWindowBits = bits;
+      }
+   }
+
+   /**
+    * Get server window bits option.
+    *
+    * @return        Server window bits.
+    */
+   public int getServerMaxWindowBits() {
+      return mServerMaxWindowBits;
+   }
+
+   /**
+    * When true, binary and raw text messages are not buffered whole but
+    * delivered in fragments to ConnectionHandler.onMessageFragment() as
+    * they arrive. A few fixed fragment buffers are used, and the reader
+    * stops reading from the socket while all of them are being handled,
+    * so messages of any size are received in constant memory. The max
+    * message payload size does not apply to streamed messages.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   True to enable.
+    */
+   public void setStreamIncomingMessages(boolean enabled) {
+      mStreamIncomingMessages = enabled;
+   }
+
+   /**
+    * Get streaming receive option.
+    *
+    * @return        True, iff binary and raw text messages are streamed.
+    */
+   public boolean getStreamIncomingMessages() {
+      return mStreamIncomingMessages;
+   }
+
+   /**
+    * Set payload size of the frames an outgoing streamed message is sent in.
+    * This is all the writer buffers of a streamed message at a time.
+    *
+    * DEFAULT: 16kB
+    *
+    * @param size    Fragment size in octets, at least 125 and at most
+    *                the max frame payload size.
+    */
+   public void setStreamFragmentSize(int size) {
+      if (size >= 125 && size <= mMaxFramePayloadSize) {
+         mStreamFragmentSize = size;
+      }
+   }
+
+   /**
+    * Get outgoing stream fragment size.
+    *
+    * @return        Fragment payload size in octets.
+    */
+   public int getStreamFragmentSize() {
+      return Math.min(mStreamFragmentSize, mMaxFramePayloadSize);
+   }
    
 //   /**
 //    * Set reconnect interval
@@ -22,14 +22,19 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
 import android.test.ApplicationTestCase;
-import android.util.Pair;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import javax.net.ssl.SSLException;
 
@@ -51,9 +56,33 @@ class WebSocketReader extends Thread {
     private final Socket mSocket;
     private final WebSocketOptions mOptions;
 
-    private final ByteBuffer mFrameBuffer;
+    /// Channel the frame buffer is filled from (socket channel or stream adapter).
+    private ReadableByteChannel mChannel;
+
+    /// Frame buffer, used as read/write-index buffer: bytes between mReadPos
+    /// and position() are received but not consumed yet.
+    private ByteBuffer mFrameBuffer;
+    private int mReadPos;
     private NoCopyByteArrayOutputStream mMessagePayload;
 
+    /// Pool raw text and binary payloads are delivered in, null when not enabled.
+    private final BufferPool mPayloadPool;
+
+    /// Connection's buffers, borrowed here and given back when the reader ends.
+    private final ConnectionBufferPool mBuffers;
+
+    /// Streamed messages are delivered in fragments of this size at most, using this many buffers.
+    private final static int FRAGMENT_SIZE = 16 * 1024;
+    private final static int FRAGMENT_BUFFERS = 4;
+
+    /// Free fragment buffers when incoming messages are streamed, null otherwise. Master
+    /// gives buffers back once handled, until then the reader blocks on an empty queue.
+    private final BlockingQueue<byte[]> mFragmentBuffers;
+
+    /// Fragment being filled and its length.
+    private byte[] mFragment;
+    private int mFragmentLength;
+
     private final static int STATE_CLOSED = 0;
     private final static int STATE_CONNECTING = 1;
     private final static int STATE_CLOSING = 2;
@@ -62,14 +91,53 @@ class WebSocketReader extends Thread {
     private boolean mStopped = false;
     private int mState;
 
+    /// Messages for master decoded from current read, not sent yet.
+    private final ArrayList<WebSocketMessage.Message> mPendingNotifications = new ArrayList<WebSocketMessage.Message>();
+
     private boolean mInsideMessage = false;
     private int mMessageOpcode;
 
+    /// Payload octets received for current message.
+    private int mMessageSize;
+
+    /// True while current text message is validated and decoded in one pass by mUtf8Decoder.
+    private boolean mDecodingText;
+
+    /// True while current message is streamed in fragments instead of buffered.
+    private boolean mStreamingMessage;
+
     /// Frame currently being received.
     private FrameHeader mFrameHeader;
 
+    /// Frame header instance reused for every received frame.
+    private final FrameHeader mFrameHeaderInstance = new FrameHeader();
+
     private Utf8Validator mUtf8Validator = new Utf8Validator();
 
+    private Utf8Decoder mUtf8Decoder = new Utf8Decoder(4 * 1024);
+
+    /// Parser of the server's HTTP response to the opening handshake.
+    private final HttpResponseParser mHttpParser = new HttpResponseParser();
+
+    /// permessage-deflate parameters accepted by server, null when not negotiated.
+    private PerMessageDeflate mDeflate;
+
+    /// Inflater for compressed messages, created once permessage-deflate is negotiated.
+    private Inflater mInflater;
+
+    /// True while current message is compressed (RSV1 set on its first frame).
+    private boolean mMessageCompressed;
+
+    /// Decompressed octets of current message.
+    private int mInflatedSize;
+
+    /// Compressed input copied out of a direct frame buffer (grown on demand).
+    private byte[] mInflateInput;
+
+    /// Inflater output, wrapped once so decoder, validator and message buffer read it in place.
+    private final byte[] mInflateOutput = new byte[8 * 1024];
+    private final ByteBuffer mInflateOutputBuffer = ByteBuffer.wrap(mInflateOutput);
+
 
     /**
      * WebSockets frame metadata.
@@ -81,7 +149,8 @@ class WebSocketReader extends Thread {
         public int mReserved;
         public int mHeaderLen;
         public int mPayloadLen;
-        public int mTotalLen;
+        /// Payload octets of this frame not consumed yet.
+        public int mRemaining;
         public byte[] mMask;
     }
 
@@ -89,19 +158,37 @@ class WebSocketReader extends Thread {
     /**
      * Create new WebSockets background reader.
      *
-     * @param master The message handler of master (foreground thread).
-     * @param socket The socket channel created on foreground thread.
+     * @param master  The message handler of master (foreground thread).
+     * @param socket  The socket channel created on foreground thread.
+     * @param buffers Connection's buffer pool.
      */
-    public WebSocketReader(Handler master, Socket socket, WebSocketOptions options, String threadName, Context context) {
+    public WebSocketReader(Handler master, Socket socket, WebSocketOptions options, ConnectionBufferPool buffers, String threadName, Context context) {
 
         super(threadName);
 
         mMaster = master;
         mSocket = socket;
         mOptions = options;
-
-        mFrameBuffer = ByteBuffer.allocateDirect(options.getMaxFramePayloadSize() + 14);
-        mMessagePayload = new NoCopyByteArrayOutputStream(options.getMaxMessagePayloadSize());
+        mBuffers = buffers;
+
+        // socket channels read straight into direct memory, plain (or SSL) socket
+        // streams read straight into the backing array of a heap buffer
+        mFrameBuffer = buffers.acquireFrameBuffer(socket.getChannel() != null);
+        if (options.getUsePooledPayloads()) {
+            mPayloadPool = buffers.getPayloadPool(options.getMaxMessagePayloadSize());
+            mMessagePayload = new NoCopyByteArrayOutputStream(mPayloadPool.acquire(4 * 1024));
+        } else {
+            mPayloadPool = null;
+            mMessagePayload = new NoCopyByteArrayOutputStream(buffers.acquireMessageBuffer());
+        }
+        if (options.getStreamIncomingMessages()) {
+            mFragmentBuffers = new ArrayBlockingQueue<byte[]>(FRAGMENT_BUFFERS);
+            for (int i = 0; i < FRAGMENT_BUFFERS; ++i) {
+                mFragmentBuffers.add(new byte[FRAGMENT_SIZE]);
+            }
+        } else {
+            mFragmentBuffers = null;
+        }
 
         mFrameHeader = null;
         mState = STATE_CONNECTING;
@@ -122,7 +209,7 @@ class WebSocketReader extends Thread {
 
     /**
      * Notify the master (foreground thread) of WebSockets message received
-     * and unwrapped.
+     * and unwrapped. Messages are collected and sent in one go by flushNotifications().
      *
      * @param message Message to send to master.
      */
@@ -133,6 +220,37 @@ class WebSocketReader extends Thread {
             return;
         }
         message.senderId = hashCode();
+        mPendingNotifications.add(message);
+    }
+
+
+    /**
+     * Send messages collected since last call to master, several of them wrapped
+     * in a single batch so master's queue is posted to once per socket read.
+     */
+    private void flushNotifications() {
+        int count = mPendingNotifications.size();
+        if (count == 0) {
+            return;
+        }
+        WebSocketMessage.Message message;
+        if (count == 1) {
+            message = mPendingNotifications.get(0);
+        } else {
+            message = new WebSocketMessage.Batch(new ArrayList<WebSocketMessage.Message>(mPendingNotifications));
+            message.senderId = hashCode();
+        }
+        mPendingNotifications.clear();
+        post(message);
+    }
+
+
+    /**
+     * Post a message to master's message queue.
+     *
+     * @param message Message to send to master.
+     */
+    protected void post(WebSocketMessage.Message message) {
         Message msg = mMaster.obtainMessage();
         msg.obj = message;
         mMaster.sendMessage(msg);
@@ -146,21 +264,28 @@ class WebSocketReader extends Thread {
         // outside frame?
         if (mFrameHeader == null) {
 
+            int available = mFrameBuffer.position() - mReadPos;
+
             // need at least 2 bytes from WS frame header to start processing
-            if (mFrameBuffer.position() >= 2) {
+            if (available >= 2) {
 
-                byte b0 = mFrameBuffer.get(0);
+                byte b0 = mFrameBuffer.get(mReadPos);
                 boolean fin = (b0 & 0x80) != 0;
                 int rsv = (b0 & 0x70) >> 4;
                 int opcode = b0 & 0x0f;
 
-                byte b1 = mFrameBuffer.get(1);
+                byte b1 = mFrameBuffer.get(mReadPos + 1);
                 boolean masked = (b1 & 0x80) != 0;
                 int payload_len1 = b1 & 0x7f;
 
                 // now check protocol compliance
 
-                if (rsv != 0) {
+                if (rsv == 4 && mDeflate != null) {
+                    // RSV1 marks a compressed message, set on its first frame only
+                    if (opcode == 0 || opcode > 7) {
+                        throw new WebSocketException("RSV1 set on continuation or control frame");
+                    }
+                } else if (rsv != 0) {
                     throw new WebSocketException("RSV != 0 and no extension negotiated");
                 }
 
@@ -211,29 +336,22 @@ class WebSocketReader extends Thread {
                 }
 
                 // continue when complete frame header is available
-                if (mFrameBuffer.position() >= header_len) {
+                if (available >= header_len) {
 
-                    // determine frame payload length
-                    int i = 2;
+                    // determine frame payload length (absolute big-endian reads, buffer is not moved)
+                    int i = mReadPos + 2;
                     long payload_len = 0;
                     if (payload_len1 == 126) {
-                        payload_len = ((0xff & mFrameBuffer.get(i)) << 8) | (0xff & mFrameBuffer.get(i + 1));
+                        payload_len = 0xffff & mFrameBuffer.getShort(i);
                         if (payload_len < 126) {
                             throw new WebSocketException("invalid data frame length (not using minimal length encoding)");
                         }
                         i += 2;
                     } else if (payload_len1 == 127) {
-                        if ((0x80 & mFrameBuffer.get(i + 0)) != 0) {
+                        payload_len = mFrameBuffer.getLong(i);
+                        if (payload_len < 0) {
                             throw new WebSocketException("invalid data frame length (> 2^63)");
                         }
-                        payload_len = ((long) (0xff & mFrameBuffer.get(i + 0)) << 56) |
-                                ((long) (0xff & mFrameBuffer.get(i + 1)) << 48) |
-                                ((long) (0xff & mFrameBuffer.get(i + 2)) << 40) |
-                                ((long) (0xff & mFrameBuffer.get(i + 3)) << 32) |
-                                ((long) (0xff & mFrameBuffer.get(i + 4)) << 24) |
-                                ((long) (0xff & mFrameBuffer.get(i + 5)) << 16) |
-                                ((long) (0xff & mFrameBuffer.get(i + 6)) << 8) |
-                                ((long) (0xff & mFrameBuffer.get(i + 7)));
                         if (payload_len < 65536) {
                             throw new WebSocketException("invalid data frame length (not using minimal length encoding)");
                         }
@@ -242,31 +360,57 @@ class WebSocketReader extends Thread {
                         payload_len = payload_len1;
                     }
 
+                    // streamed message payload is handed on as it arrives, no limits apply but int range
+                    boolean streamed = opcode <= 7 && (mInsideMessage ? mStreamingMessage : isStreamed(opcode));
+                    if (streamed && payload_len > Integer.MAX_VALUE) {
+                        throw new WebSocketException("frame payload too large");
+                    }
+
                     // immediately bail out on frame too large
-                    if (payload_len > mOptions.getMaxFramePayloadSize()) {
+                    if (!streamed && payload_len > mOptions.getMaxFramePayloadSize()) {
                         throw new WebSocketException("frame payload too large");
                     }
 
+                    // .. and on message too large, before any of its payload arrived
+                    if (opcode <= 7 && !streamed && mMessageSize + payload_len > mOptions.getMaxMessagePayloadSize()) {
+                        throw new WebSocketException("message payload too large");
+                    }
+
                     // save frame header metadata
-                    mFrameHeader = new FrameHeader();
+                    mFrameHeader = mFrameHeaderInstance;
                     mFrameHeader.mOpcode = opcode;
                     mFrameHeader.mFin = fin;
                     mFrameHeader.mReserved = rsv;
                     mFrameHeader.mPayloadLen = (int) payload_len;
                     mFrameHeader.mHeaderLen = header_len;
-                    mFrameHeader.mTotalLen = mFrameHeader.mHeaderLen + mFrameHeader.mPayloadLen;
+                    mFrameHeader.mRemaining = mFrameHeader.mPayloadLen;
                     if (masked) {
                         mFrameHeader.mMask = new byte[4];
                         for (int j = 0; j < 4; ++j) {
-                            mFrameHeader.mMask[i] = (byte) (0xff & mFrameBuffer.get(i + j));
+                            mFrameHeader.mMask[j] = mFrameBuffer.get(i + j);
                         }
                         i += 4;
                     } else {
                         mFrameHeader.mMask = null;
                     }
 
-                    // continue processing when payload empty or completely buffered
-                    return mFrameHeader.mPayloadLen == 0 || mFrameBuffer.position() >= mFrameHeader.mTotalLen;
+                    // header is done with, payload is consumed from here on
+                    consumeFrameBuffer(header_len);
+                    available -= header_len;
+
+                    // payload is processed as it arrives, but a buffer holding whole frames
+                    // takes fewer reads; grow once frames larger than the buffer show up
+                    if (opcode <= 7 && mFrameHeader.mPayloadLen > mFrameBuffer.capacity() - 14) {
+                        growFrameBuffer(mFrameHeader.mPayloadLen + 14);
+                    }
+
+                    if (opcode > 7) {
+                        // continue processing when control payload empty or completely buffered
+                        return mFrameHeader.mPayloadLen == 0 || available >= mFrameHeader.mPayloadLen;
+                    } else {
+                        // continue processing when message payload empty or some of it buffered
+                        return mFrameHeader.mPayloadLen == 0 || available > 0;
+                    }
 
                 } else {
                     // need more data
@@ -279,156 +423,388 @@ class WebSocketReader extends Thread {
 
         } else {
 
-            /// \todo refactor this for streaming processing, incl. fail fast on invalid UTF-8 within frame already
-
             // within frame
 
-            // see if we buffered complete frame
-            if (mFrameBuffer.position() >= mFrameHeader.mTotalLen) {
+            if (mFrameHeader.mOpcode > 7) {
+                // control frames are small (<= 125 octets), see if we buffered it complete
+                if (mFrameBuffer.position() - mReadPos < mFrameHeader.mPayloadLen) {
+                    // need more data
+                    return false;
+                }
+                processControlFrame();
+                consumeFrameBuffer(mFrameHeader.mPayloadLen);
+                mFrameHeader.mRemaining = 0;
+
+            } else {
+                // message frame: consume as much payload as is buffered right now
+                int chunk = Math.min(mFrameBuffer.position() - mReadPos, mFrameHeader.mRemaining);
+                processMessageChunk(mReadPos, chunk);
+                consumeFrameBuffer(chunk);
+                mFrameHeader.mRemaining -= chunk;
 
-                // cut out frame payload
-                byte[] framePayload = null;
-                int oldPosition = mFrameBuffer.position();
-                if (mFrameHeader.mPayloadLen > 0) {
-                    framePayload = new byte[mFrameHeader.mPayloadLen];
-                    mFrameBuffer.position(mFrameHeader.mHeaderLen);
-                    mFrameBuffer.get(framePayload, 0, (int) mFrameHeader.mPayloadLen);
+                if (mFrameHeader.mRemaining > 0) {
+                    // need more data
+                    return false;
                 }
-                mFrameBuffer.position(mFrameHeader.mTotalLen);
-                mFrameBuffer.limit(oldPosition);
-                mFrameBuffer.compact();
 
-                if (mFrameHeader.mOpcode > 7) {
-                    // control frame
+                // on final frame ..
+                if (mFrameHeader.mFin) {
+                    deliverMessage();
+                }
+            }
 
-                    if (mFrameHeader.mOpcode == 8) {
+            // reset frame
+            mFrameHeader = null;
 
-                        int code = 1005; // CLOSE_STATUS_CODE_NULL : no status code received
-                        String reason = null;
+            // reprocess if more data left
+            return mFrameBuffer.position() > mReadPos;
+        }
+    }
 
-                        if (mFrameHeader.mPayloadLen >= 2) {
 
-                            // parse and check close code - see http://tools.ietf.org/html/rfc6455#section-7.4
-                            code = (framePayload[0] & 0xff) * 256 + (framePayload[1] & 0xff);
-                            if (code < 1000
-                                    || (code >= 1000 && code <= 2999 &&
-                                    code != 1000 && code != 1001 && code != 1002 && code != 1003 && code != 1007 && code != 1008 && code != 1009 && code != 1010 && code != 1011)
-                                    || code >= 5000) {
+    /**
+     * Mark given number of octets at mReadPos as consumed. Nothing is moved,
+     * the buffer is reset for free once all received data is consumed.
+     */
+    private void consumeFrameBuffer(int len) {
+        mReadPos += len;
+        if (mReadPos == mFrameBuffer.position()) {
+            mFrameBuffer.clear();
+            mReadPos = 0;
+        }
+    }
 
-                                throw new WebSocketException("invalid close code " + code);
-                            }
 
-                            // parse and check close reason
-                            if (mFrameHeader.mPayloadLen > 2) {
+    /**
+     * Process completely buffered control frame at mReadPos.
+     */
+    private void processControlFrame() throws Exception {
+
+        // cut out frame payload (at most 125 octets)
+        byte[] framePayload = null;
+        if (mFrameHeader.mPayloadLen > 0) {
+            framePayload = new byte[mFrameHeader.mPayloadLen];
+            int oldPosition = mFrameBuffer.position();
+            mFrameBuffer.position(mReadPos);
+            mFrameBuffer.get(framePayload, 0, mFrameHeader.mPayloadLen);
+            mFrameBuffer.position(oldPosition);
+        }
 
-                                byte[] ra = new byte[mFrameHeader.mPayloadLen - 2];
-                                System.arraycopy(framePayload, 2, ra, 0, mFrameHeader.mPayloadLen - 2);
+        if (mFrameHeader.mOpcode == 8) {
 
-                                Utf8Validator val = new Utf8Validator();
-                                val.validate(ra);
-                                if (!val.isValid()) {
-                                    throw new WebSocketException("invalid close reasons (not UTF-8)");
-                                } else {
-                                    reason = new String(ra, "UTF-8");
-                                }
-                            }
-                        }
-                        onClose(code, reason);
+            int code = 1005; // CLOSE_STATUS_CODE_NULL : no status code received
+            String reason = null;
 
-                    } else if (mFrameHeader.mOpcode == 9) {
-                        // dispatch WS ping
-                        onPing(framePayload);
+            if (mFrameHeader.mPayloadLen >= 2) {
 
-                    } else if (mFrameHeader.mOpcode == 10) {
-                        // dispatch WS pong
-                        onPong(framePayload);
+                // parse and check close code - see http://tools.ietf.org/html/rfc6455#section-7.4
+                code = (framePayload[0] & 0xff) * 256 + (framePayload[1] & 0xff);
+                if (code < 1000
+                        || (code >= 1000 && code <= 2999 &&
+                        code != 1000 && code != 1001 && code != 1002 && code != 1003 && code != 1007 && code != 1008 && code != 1009 && code != 1010 && code != 1011)
+                        || code >= 5000) {
 
-                    } else {
+                    throw new WebSocketException("invalid close code " + code);
+                }
+
+                // parse and check close reason
+                if (mFrameHeader.mPayloadLen > 2) {
 
-                        // should not arrive here (handled before)
-                        throw new Exception("logic error");
+                    Utf8Validator val = new Utf8Validator();
+                    val.validate(framePayload, 2, mFrameHeader.mPayloadLen - 2);
+                    if (!val.isValid()) {
+                        throw new WebSocketException("invalid close reasons (not UTF-8)");
+                    } else {
+                        reason = new String(framePayload, 2, mFrameHeader.mPayloadLen - 2, "UTF-8");
                     }
+                }
+            }
+            onClose(code, reason);
 
-                } else {
-                    // message frame
+        } else if (mFrameHeader.mOpcode == 9) {
+            // dispatch WS ping
+            onPing(framePayload);
 
-                    if (!mInsideMessage) {
-                        // new message started
-                        mInsideMessage = true;
-                        mMessageOpcode = mFrameHeader.mOpcode;
-                        if (mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8()) {
-                            mUtf8Validator.reset();
-                        }
-                    }
+        } else if (mFrameHeader.mOpcode == 10) {
+            // dispatch WS pong
+            onPong(framePayload);
 
-                    if (framePayload != null) {
+        } else {
 
-                        // immediately bail out on message too large
-                        if (mMessagePayload.size() + framePayload.length > mOptions.getMaxMessagePayloadSize()) {
-                            throw new WebSocketException("message payload too large");
-                        }
+            // should not arrive here (handled before)
+            throw new Exception("logic error");
+        }
+    }
+
+
+    /**
+     * Process a chunk of message frame payload as soon as it is received: inflate it
+     * when the message is compressed, then buffer it for the message and validate it,
+     * failing on the first invalid UTF-8 octet.
+     *
+     * @param index Absolute index of chunk within frame buffer.
+     * @param len   Chunk length, may be 0.
+     */
+    private void processMessageChunk(int index, int len) throws WebSocketException {
+
+        if (!mInsideMessage) {
+            // new message started
+            mInsideMessage = true;
+            mMessageOpcode = mFrameHeader.mOpcode;
+            mMessageSize = 0;
+            mMessageCompressed = (mFrameHeader.mReserved & 4) != 0;
+            mInflatedSize = 0;
+            mStreamingMessage = isStreamed(mMessageOpcode);
+            mDecodingText = mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8() && !mOptions.getReceiveTextMessagesRaw();
+            if (mDecodingText) {
+                mUtf8Decoder.reset();
+            } else if (mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8()) {
+                mUtf8Validator.reset();
+            }
+        }
+
+        if (len > 0) {
+
+            mMessageSize += len;
+
+            if (mMessageCompressed) {
+
+                if (mFrameBuffer.hasArray()) {
+                    // inflate straight from the backing array of the frame buffer
+                    mInflater.setInput(mFrameBuffer.array(), mFrameBuffer.arrayOffset() + index, len);
+                } else {
+                    if (mInflateInput == null || mInflateInput.length < len) {
+                        mInflateInput = new byte[len];
+                    }
+                    int oldPosition = mFrameBuffer.position();
+                    mFrameBuffer.position(index);
+                    mFrameBuffer.get(mInflateInput, 0, len);
+                    mFrameBuffer.position(oldPosition);
+                    mInflater.setInput(mInflateInput, 0, len);
+                }
+                inflateMessageData();
+
+            } else {
+                processMessageData(mFrameBuffer, index, len);
+            }
+        }
+    }
 
-                        // validate incoming UTF-8
-                        if (mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8() && !mUtf8Validator.validate(framePayload)) {
-                            throw new WebSocketException("invalid UTF-8 in text message payload");
-                        }
 
-                        // buffer frame payload for message
-                        mMessagePayload.write(framePayload);
+    /**
+     * Inflate all input set on mInflater and process the decompressed data. Returns
+     * only when the inflater needs more input, so its input array may be reused.
+     */
+    private void inflateMessageData() throws WebSocketException {
+        try {
+            while (!mInflater.finished()) {
+                int len = mInflater.inflate(mInflateOutput);
+                if (len > 0) {
+                    mInflatedSize += len;
+                    if (!mStreamingMessage && mInflatedSize > mOptions.getMaxMessagePayloadSize()) {
+                        throw new WebSocketException("message payload too large");
                     }
+                    processMessageData(mInflateOutputBuffer, 0, len);
+                } else if (mInflater.needsInput()) {
+                    break;
+                } else if (mInflater.needsDictionary()) {
+                    throw new WebSocketException("invalid compressed message payload (preset dictionary)");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new WebSocketException("invalid compressed message payload (" + e.getMessage() + ")");
+        }
+    }
 
-                    // on final frame ..
-                    if (mFrameHeader.mFin) {
 
-                        if (mMessageOpcode == 1) {
+    /**
+     * Process (decompressed) message payload data: validate and decode or buffer it.
+     *
+     * @param buffer Buffer holding the data.
+     * @param index  Absolute index of data within buffer.
+     * @param len    Data length.
+     */
+    private void processMessageData(ByteBuffer buffer, int index, int len) throws WebSocketException {
 
-                            // verify that UTF-8 ends on codepoint
-                            if (mOptions.getValidateIncomingUtf8() && !mUtf8Validator.isValid()) {
-                                throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
-                            }
+        if (mDecodingText) {
 
-                            // deliver text message
-                            if (mOptions.getReceiveTextMessagesRaw()) {
+            // validate and decode incoming UTF-8 in one pass, right within the buffer
+            if (!mUtf8Decoder.decode(buffer, index, len)) {
+                throw new WebSocketException("invalid UTF-8 in text message payload");
+            }
+            return;
+        }
 
-                                // dispatch WS text message as raw (but validated) UTF-8
-                                onRawTextMessage(mMessagePayload.toByteArray());
+        // validate incoming UTF-8, right within the buffer
+        if (mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8()
+                && !mUtf8Validator.validate(buffer, index, len)) {
+            throw new WebSocketException("invalid UTF-8 in text message payload");
+        }
 
-                            } else {
+        if (mStreamingMessage) {
+            writeFragment(buffer, index, len);
+        } else {
+            // buffer payload for message, straight from the buffer
+            mMessagePayload.write(buffer, index, len);
+        }
+    }
 
-                                // dispatch WS text message as Java String (previously already validated)
-                                String s = new String(mMessagePayload.toByteArray(), "UTF-8");
-                                onTextMessage(s);
-                            }
 
-                        } else if (mMessageOpcode == 2) {
+    /**
+     * True if messages with given opcode are streamed in fragments.
+     */
+    private boolean isStreamed(int opcode) {
+        return mFragmentBuffers != null && (opcode == 2 || (opcode == 1 && mOptions.getReceiveTextMessagesRaw()));
+    }
 
-                            // dispatch WS binary message
-                            onBinaryMessage(mMessagePayload.toByteArray());
 
-                        } else {
+    /**
+     * Copy streamed message data into fragment buffers, sending each one to master once full.
+     */
+    private void writeFragment(ByteBuffer buffer, int index, int len) throws WebSocketException {
+        int oldPosition = buffer.position();
+        try {
+            buffer.position(index);
+            while (len > 0) {
+                if (mFragment == null) {
+                    mFragment = takeFragmentBuffer();
+                    mFragmentLength = 0;
+                }
+                int n = Math.min(len, mFragment.length - mFragmentLength);
+                buffer.get(mFragment, mFragmentLength, n);
+                mFragmentLength += n;
+                len -= n;
+                if (mFragmentLength == mFragment.length) {
+                    sendFragment(false);
+                }
+            }
+        } finally {
+            buffer.position(oldPosition);
+        }
+    }
 
-                            // should not arrive here (handled before)
-                            throw new Exception("logic error");
-                        }
 
-                        // ok, message completed - reset all
-                        mInsideMessage = false;
-                        mMessagePayload.reset();
-                    }
+    /**
+     * Send the fragment filled so far to master. The final fragment is sent even when empty.
+     *
+     * @param last True for the final fragment of the message.
+     */
+    private void sendFragment(boolean last) {
+        if (mFragmentLength > 0 || last) {
+            notify(new WebSocketMessage.MessageFragment(mMessageOpcode == 1, mFragment, mFragmentLength, last, mFragmentBuffers));
+            mFragment = null;
+            mFragmentLength = 0;
+        }
+    }
+
+
+    /**
+     * Take a free fragment buffer, blocking (and so not reading from socket) until master
+     * gave one back.
+     */
+    private byte[] takeFragmentBuffer() throws WebSocketException {
+        try {
+            // fragments holding the buffers may still be pending
+            flushNotifications();
+            byte[] buffer;
+            while ((buffer = mFragmentBuffers.poll(500, TimeUnit.MILLISECONDS)) == null) {
+                if (mState == STATE_CLOSED) {
+                    throw new WebSocketException("reader quit while waiting for fragment buffer");
                 }
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            throw new WebSocketException("interrupted while waiting for fragment buffer");
+        }
+    }
+
+
+    /**
+     * Dispatch message completed by a final frame.
+     */
+    private void deliverMessage() throws Exception {
+
+        if (mMessageCompressed) {
+            // compressed messages end on an empty stored block with its tail stripped
+            mInflater.setInput(PerMessageDeflate.TAIL);
+            inflateMessageData();
+            if (mDeflate.mServerNoContextTakeover || mInflater.finished()) {
+                mInflater.reset();
+            }
+        }
+
+        if (mStreamingMessage) {
+
+            // verify that UTF-8 ends on codepoint
+            if (mMessageOpcode == 1 && mOptions.getValidateIncomingUtf8() && !mUtf8Validator.isValid()) {
+                throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+            }
+
+            // dispatch what is left of streamed message
+            sendFragment(true);
+
+        } else if (mDecodingText) {
+
+            // verify that UTF-8 ends on codepoint
+            if (!mUtf8Decoder.isValid()) {
+                throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+            }
+
+            // dispatch WS text message as Java String, built straight from decoded chars
+            onTextMessage(mUtf8Decoder.toString());
+
+        } else if (mMessageOpcode == 1) {
+
+            // verify that UTF-8 ends on codepoint
+            if (mOptions.getValidateIncomingUtf8() && !mUtf8Validator.isValid()) {
+                throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+            }
 
-                // reset frame
-                mFrameHeader = null;
+            // deliver text message
+            if (mOptions.getReceiveTextMessagesRaw()) {
 
-                // reprocess if more data left
-                return mFrameBuffer.position() > 0;
+                if (mPayloadPool != null) {
+                    // dispatch WS text message as raw UTF-8 in a pooled buffer
+                    int length = mMessagePayload.size();
+                    byte[] payload = mMessagePayload.detach(mPayloadPool.acquire(length));
+                    notify(new WebSocketMessage.RawTextMessage(payload, length, mPayloadPool));
+                } else {
+                    // dispatch WS text message as raw (but validated) UTF-8
+                    onRawTextMessage(mMessagePayload.toByteArray());
+                }
 
             } else {
 
-                // need more data
-                return false;
+                // dispatch WS text message as Java String (not validated),
+                // decoded right from the message buffer
+                String s = new String(mMessagePayload.getByteArray(), 0, mMessagePayload.size(), "UTF-8");
+                onTextMessage(s);
+            }
+
+        } else if (mMessageOpcode == 2) {
+
+            if (mPayloadPool != null) {
+                // dispatch WS binary message in a pooled buffer
+                int length = mMessagePayload.size();
+                byte[] payload = mMessagePayload.detach(mPayloadPool.acquire(length));
+                notify(new WebSocketMessage.BinaryMessage(payload, length, mPayloadPool));
+            } else {
+                // dispatch WS binary message
+                onBinaryMessage(mMessagePayload.toByteArray());
             }
+
+        } else {
+
+            // should not arrive here (handled before)
+            throw new Exception("logic error");
         }
+
+        // ok, message completed - reset all
+        mInsideMessage = false;
+        mMessageSize = 0;
+        mMessageCompressed = false;
+        mStreamingMessage = false;
+        mMessagePayload.reset();
     }
 
 
@@ -439,7 +815,7 @@ class WebSocketReader extends Thread {
      */
     protected void onHandshake(boolean success) {
 
-        notify(new WebSocketMessage.ServerHandshake(success));
+        notify(new WebSocketMessage.ServerHandshake(success, mDeflate, mHttpParser.getHeaders()));
     }
 
 
@@ -514,110 +890,82 @@ class WebSocketReader extends Thread {
 
 
     /**
-     * Process WebSockets handshake received from server.
+     * Process WebSockets handshake received from server. The response head is parsed
+     * incrementally, picking up where the previous read left off.
      */
-    private boolean processHandshake() throws UnsupportedEncodingException {
-
-        boolean res = false;
-        for (int pos = mFrameBuffer.position() - 4; pos >= 0; --pos) {
-            if (mFrameBuffer.get(pos + 0) == 0x0d &&
-                    mFrameBuffer.get(pos + 1) == 0x0a &&
-                    mFrameBuffer.get(pos + 2) == 0x0d &&
-                    mFrameBuffer.get(pos + 3) == 0x0a) {
-
-                /// \todo process & verify handshake from server
-                /// \todo forward subprotocol, if any
-
-                int oldPosition = mFrameBuffer.position();
-
-                // Check HTTP status code
-                boolean serverError = false;
-                if (mFrameBuffer.get(0) == 'H' &&
-                        mFrameBuffer.get(1) == 'T' &&
-                        mFrameBuffer.get(2) == 'T' &&
-                        mFrameBuffer.get(3) == 'P') {
-
-                    Pair<Integer, String> status = parseHttpStatus();
-                    if (status.first >= 300) {
-                        // Invalid status code for success connection
-                        notify(new WebSocketMessage.ServerError(status.first, status.second));
-                        serverError = true;
-                    }
-                }
-
-                mFrameBuffer.position(pos + 4);
-                mFrameBuffer.limit(oldPosition);
-                mFrameBuffer.compact();
+    private boolean processHandshake() throws WebSocketException {
 
-                if (!serverError) {
-                    // process further when data after HTTP headers left in buffer
-                    res = mFrameBuffer.position() > 0;
+        int end = mHttpParser.parse(mFrameBuffer, mFrameBuffer.position());
+        if (end < 0) {
+            // need more data
+            return false;
+        }
 
-                    mState = STATE_OPEN;
-                } else {
-                    res = true;
-                    mState = STATE_CLOSED;
-                    mStopped = true;
-                }
+        /// \todo verify Sec-WebSocket-Accept
+        /// \todo forward subprotocol, if any
+
+        // Check HTTP status code
+        boolean serverError = false;
+        int statusCode = mHttpParser.getStatusCode();
+        if (statusCode != 101) {
+            // Invalid status code for success connection
+            BefLog.w(TAG, String.format("Status: %d (%s)", statusCode, mHttpParser.getStatusMessage()));
+            notify(new WebSocketMessage.ServerError(statusCode, mHttpParser.getStatusMessage()));
+            serverError = true;
+        }
 
-                onHandshake(!serverError);
-                break;
+        if (!serverError) {
+            // set up inflater when server accepted permessage-deflate
+            mDeflate = PerMessageDeflate.accept(mHttpParser.getHeader("sec-websocket-extensions"), mOptions);
+            if (mDeflate != null) {
+                BefLog.v(TAG, "negotiated " + mDeflate);
+                mInflater = new Inflater(true);
             }
         }
-        return res;
-    }
 
-    @SuppressWarnings("unused")
-    private Map<String, String> parseHttpHeaders(byte[] buffer) throws UnsupportedEncodingException {
-        // TODO: use utf-8 validator?
-        String s = new String(buffer, "UTF-8");
-        Map<String, String> headers = new HashMap<String, String>();
-
-        String[] lines = s.split("\r\n");
-        for (String line : lines) {
-            if (line.length() > 0) {
-                String[] h = line.split(": ");
-                if (h.length == 2) {
-                    headers.put(h[0], h[1]);
-                    BefLog.w(TAG, String.format("'%s'='%s'", h[0], h[1]));
-                }
-            }
+        // frames (if any) start right after HTTP headers, right where they are in buffer
+        consumeFrameBuffer(end);
+
+        boolean res;
+        if (!serverError) {
+            // process further when data after HTTP headers left in buffer
+            res = mFrameBuffer.position() > mReadPos;
+
+            mState = STATE_OPEN;
+        } else {
+            res = true;
+            mState = STATE_CLOSED;
+            mStopped = true;
         }
 
-        return headers;
+        onHandshake(!serverError);
+        return res;
     }
 
-    private Pair<Integer, String> parseHttpStatus() throws UnsupportedEncodingException {
-        int beg, end;
-        // Find first space
-        for (beg = 4; beg < mFrameBuffer.position(); ++beg) {
-            if (mFrameBuffer.get(beg) == ' ') break;
-        }
-        // Find second space
-        for (end = beg + 1; end < mFrameBuffer.position(); ++end) {
-            if (mFrameBuffer.get(end) == ' ') break;
-        }
-        // Parse status code between them
-        ++beg;
-        int statusCode = 0;
-        for (int i = 0; beg + i < end; ++i) {
-            int digit = (mFrameBuffer.get(beg + i) - 0x30);
-            statusCode *= 10;
-            statusCode += digit;
+
+    /**
+     * Replace mFrameBuffer by a larger one, unconsumed data is carried over.
+     */
+    private void growFrameBuffer(int needed) {
+        ByteBuffer grown = mBuffers.growFrameBuffer(mFrameBuffer, mReadPos, needed, mOptions.getMaxFramePayloadSize() + 14);
+        if (grown != mFrameBuffer) {
+            mFrameBuffer = grown;
+            mReadPos = 0;
         }
-        // Find end of line to extract error message
-        ++end;
-        int eol;
-        for (eol = end; eol < mFrameBuffer.position(); ++eol) {
-            if (mFrameBuffer.get(eol) == 0x0d) break;
+    }
+
+
+    /**
+     * Move the unconsumed tail of mFrameBuffer to its start. This only runs when the
+     * buffer is full, so a burst of frames received in one read is never shifted per frame.
+     */
+    private void reclaimFrameBuffer() {
+        if (mReadPos > 0) {
+            mFrameBuffer.limit(mFrameBuffer.position());
+            mFrameBuffer.position(mReadPos);
+            mFrameBuffer.compact();
+            mReadPos = 0;
         }
-        int statusMessageLength = eol - end;
-        byte[] statusBuf = new byte[statusMessageLength];
-        mFrameBuffer.position(end);
-        mFrameBuffer.get(statusBuf, 0, statusMessageLength);
-        String statusMessage = new String(statusBuf, "UTF-8");
-        BefLog.w(TAG, String.format("Status: %d (%s)", statusCode, statusMessage));
-        return new Pair<Integer, String>(statusCode, statusMessage);
     }
 
 
@@ -653,17 +1001,36 @@ class WebSocketReader extends Thread {
 
         try {
             mFrameBuffer.clear();
-            byte readbuff[] = new byte[mFrameBuffer.capacity()];
+            mReadPos = 0;
+            if (mSocket.getChannel() != null) {
+                mChannel = mSocket.getChannel();
+            } else {
+                mChannel = new InputStreamChannel(mSocket.getInputStream());
+            }
             do {
-                // blocking read on socket
-                int len = mSocket.getInputStream().read(readbuff, 0, readbuff.length);
+                if (!mFrameBuffer.hasRemaining()) {
+                    reclaimFrameBuffer();
+                    if (!mFrameBuffer.hasRemaining() && mState == STATE_CONNECTING) {
+                        // handshake head is parsed in place, so it must fit the buffer as a whole
+                        growFrameBuffer(mFrameBuffer.capacity() * 2);
+                    }
+                    if (!mFrameBuffer.hasRemaining()) {
+                        throw new WebSocketException("frame buffer overflow");
+                    }
+                }
+                // blocking read on socket, directly into frame buffer
+                int len = mChannel.read(mFrameBuffer);
                 BefLog.v(TAG, "length : " + len);
                 if (len > 0) {
-                    mFrameBuffer.put(readbuff, 0, len);
                     // process buffered data
                     while (consumeData()) {
                     }
                     ;
+                    // hand on streamed data received so far before blocking on next read
+                    if (mStreamingMessage) {
+                        sendFragment(false);
+                    }
+                    flushNotifications();
                 } else if (mState == STATE_CLOSED) {
                     mStopped = true;
                 } else if (len < 0) {
@@ -689,9 +1056,22 @@ class WebSocketReader extends Thread {
             // wrap the exception and notify master
             notify(new WebSocketMessage.ConnectionLost());
 
+        } catch (ClosedChannelException e) {
+
+            BefLog.v(TAG, "run() : ClosedChannelException (" + e.toString() + ")");
+
+            // wrap the exception and notify master
+            notify(new WebSocketMessage.ConnectionLost());
+
         } catch (SSLException e) {
             BefLog.v(TAG, "run() : SSLException (" + e.toString() + ")");
 
+            // wrap the exception and notify master
+            notify(new WebSocketMessage.ConnectionLost());
+        } catch (IOException e) {
+            // channel reads report a reset or broken connection as plain IOException
+            BefLog.v(TAG, "run() : IOException (" + e.toString() + ")");
+
             // wrap the exception and notify master
             notify(new WebSocketMessage.ConnectionLost());
         } catch (Exception e) {
@@ -727,6 +1107,17 @@ class WebSocketReader extends Thread {
             }
         } finally {
             mStopped = true;
+            flushNotifications();
+            if (mInflater != null) {
+                mInflater.end();
+            }
+            // delivered messages never refer to these, give them back for the next connection
+            mBuffers.releaseFrameBuffer(mFrameBuffer);
+            if (mPayloadPool != null) {
+                mPayloadPool.release(mMessagePayload.getByteArray());
+            } else {
+                mBuffers.releaseMessageBuffer(mMessagePayload.getByteArray());
+            }
         }
 
         BefLog.v(TAG, "ended");
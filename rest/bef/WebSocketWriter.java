@@ -18,8 +18,8 @@
 package rest.bef;
 
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.util.Base64;
 import android.util.Log;
@@ -27,8 +27,12 @@ import android.util.Log;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 import javax.net.ssl.SSLException;
 
@@ -37,13 +41,17 @@ import rest.bef.BefLog;
 
 /**
  * WebSocket writer, the sending leg of a WebSockets connection.
- * This is run on it's background thread with it's own message loop.
- * The only method that needs to be called (from foreground thread) is forward(),
+ * This runs on it's own background thread, parked while there is nothing to send.
+ * The only method that needs to be called (from any thread) is forward(),
  * which is used to forward a WebSockets message to this object (running on
  * background thread) so that it can be formatted and sent out on the
- * underlying TCP socket.
+ * underlying TCP socket. Messages are handed over through lock-free queues,
+ * and messages forwarded while the writer is busy are coalesced and sent out
+ * with a single socket write. Pings and pongs have a lane of their own and
+ * jump ahead of queued data. Large and streamed messages are sent in bounded
+ * fragments, with pings and pongs going out between them.
  */
-class WebSocketWriter extends Handler {
+class WebSocketWriter extends Thread {
     private static final String TAG = BefLog.TAG_PREF + "WebSocketWriter";
 
     private Context context;
@@ -54,9 +62,6 @@ class WebSocketWriter extends Handler {
     /// Connection master.
     private final Handler mMaster;
 
-    /// Message looper this object is running on.
-    private final Looper mLooper;
-
     /// The NIO socket channel created on foreground thread.
     private final Socket mSocket;
 
@@ -66,27 +71,74 @@ class WebSocketWriter extends Handler {
     /// The send buffer that holds data to send on socket.
     private final ByteBufferOutputStream mBuffer;
 
+    /// Connection's buffers, the send buffer is given back when the writer ends.
+    private final ConnectionBufferPool mBuffers;
+
+    /// Send buffer grows in steps of this size.
+    private static final int BUFFER_GROW_SIZE = 16 * 1024;
+
     private boolean stopped;
 
+    /// Outgoing ping and pong messages, sent ahead of queued data messages.
+    private final ConcurrentLinkedQueue<Object> mControlQueue = new ConcurrentLinkedQueue<Object>();
+
+    /// All other outgoing messages, in order.
+    private final ConcurrentLinkedQueue<Object> mDataQueue = new ConcurrentLinkedQueue<Object>();
+
+    /// True while the writer thread is about to park or parked, forward() has to unpark it.
+    private volatile boolean mParked;
+
+    /// Buffered data is written out once it reaches this size, even when more messages are queued.
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+
+    /// Socket channel for plain connections, null when writing to the socket stream.
+    private final SocketChannel mChannel;
+
+    /// Messages shorter than this are not worth compressing.
+    private static final int MIN_DEFLATE_SIZE = 64;
+
+    /// permessage-deflate parameters accepted by server, null when not negotiated.
+    private PerMessageDeflate mDeflate;
+
+    /// Deflater for outgoing messages, created on first message worth compressing.
+    private Deflater mDeflater;
+
+    /// Deflater output (grown on demand).
+    private byte[] mDeflateOutput;
+
+    /// Streamed message being sent, data messages queued behind it wait till it is complete.
+    private WebSocketMessage.StreamMessage mStream;
+
+    /// Set once the first fragment of the current streamed message was sent.
+    private boolean mStreamStarted;
+
+    /// Fragment read from the current streamed message, created on first use.
+    private ByteBuffer mStreamBuffer;
+
+    /// Quit forwarded by master, it aborts a streamed message being sent instead of waiting behind it.
+    private volatile WebSocketMessage.Quit mQuit;
+
 
     /**
      * Create new WebSockets background writer.
      *
-     * @param looper  The message looper of the background thread on which
-     *                this object is running.
      * @param master  The message handler of master (foreground thread).
      * @param socket  The socket channel created on foreground thread.
      * @param options WebSockets connection options.
+     * @param buffers Connection's buffer pool.
      */
-    public WebSocketWriter(Looper looper, Handler master, Socket socket, WebSocketOptions options, Context context) {
+    public WebSocketWriter(Handler master, Socket socket, WebSocketOptions options, ConnectionBufferPool buffers, Context context) {
 
-        super(looper);
+        super("WebSocketWriter");
 
-        mLooper = looper;
         mMaster = master;
         mSocket = socket;
         mOptions = options;
-        mBuffer = new ByteBufferOutputStream(options.getMaxFramePayloadSize() + 14, 4 * 64 * 1024);
+        mChannel = socket.getChannel();
+        // socket channels write straight from direct memory, socket streams (SSL) from
+        // the backing array of a heap buffer
+        mBuffers = buffers;
+        mBuffer = new ByteBufferOutputStream(buffers.acquireSendBuffer(mChannel != null), BUFFER_GROW_SIZE);
         this.context = context.getApplicationContext();
 
         BefLog.v(TAG, "created");
@@ -104,9 +156,61 @@ class WebSocketWriter extends Handler {
      *                this class).
      */
     public void forward(Object message) {
-        Message msg = obtainMessage();
-        msg.obj = message;
-        sendMessage(msg);
+        if (message instanceof WebSocketMessage.Ping || message instanceof WebSocketMessage.Pong) {
+            mControlQueue.add(message);
+        } else {
+            if (message instanceof WebSocketMessage.Quit) {
+                mQuit = (WebSocketMessage.Quit) message;
+            }
+            mDataQueue.add(message);
+        }
+        // the queue insert above is ordered before this read, so a writer going to park
+        // either sees the message or is seen parking here
+        if (mParked) {
+            LockSupport.unpark(this);
+        }
+    }
+
+
+    /**
+     * Next message to send, control messages first, then the rest of a streamed
+     * message being sent. A pending Quit goes ahead of the streamed message, whose
+     * source may take long to deliver the rest.
+     *
+     * @return Message or null when both queues are empty.
+     */
+    private Object pollMessage() {
+        Object message = mControlQueue.poll();
+        if (message == null) {
+            if (mStream != null) {
+                message = mQuit != null ? mQuit : mStream;
+            } else {
+                message = mDataQueue.poll();
+            }
+        }
+        return message;
+    }
+
+
+    /**
+     * Send out buffered data with one socket write and clear the buffer.
+     * Nothing is copied: the buffer itself goes to the socket channel, or
+     * its backing array to the socket stream.
+     */
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        ByteBuffer buffer = mBuffer.getBuffer();
+        if (buffer.hasRemaining()) {
+            // this can block on socket write
+            if (mChannel != null) {
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            } else {
+                mSocket.getOutputStream().write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+        }
+        mBuffer.clear();
     }
 
 
@@ -131,24 +235,22 @@ class WebSocketWriter extends Handler {
     /**
      * Create new key for WebSockets handshake.
      *
-     * @return WebSockets handshake key (Base64 encoded).
+     * @return WebSockets handshake key (Base64 encoded, ASCII).
      */
-    private String newHandshakeKey() {
+    private byte[] newHandshakeKey() {
         final byte[] ba = new byte[16];
         mRng.nextBytes(ba);
-        return Base64.encodeToString(ba, Base64.NO_WRAP);
+        return Base64.encode(ba, Base64.NO_WRAP);
     }
 
 
     /**
      * Create new (random) frame mask.
      *
-     * @return Frame mask (4 octets).
+     * @return Frame mask (4 octets, big-endian).
      */
-    private byte[] newFrameMask() {
-        final byte[] ba = new byte[4];
-        mRng.nextBytes(ba);
-        return ba;
+    private int newFrameMask() {
+        return mRng.nextInt();
     }
 
 
@@ -156,53 +258,15 @@ class WebSocketWriter extends Handler {
      * Send WebSocket client handshake.
      */
     private void sendClientHandshake(WebSocketMessage.ClientHandshake message) throws IOException {
+        sendClientHandshake(new ClientHandshakeTemplate(message, mOptions, null, null));
+    }
 
-        // write HTTP header with handshake
-        String path;
-        if (message.mQuery != null) {
-            path = message.mPath + "?" + message.mQuery;
-        } else {
-            path = message.mPath;
-        }
-        mBuffer.write("GET " + path + " HTTP/1.1");
-        mBuffer.crlf();
-        mBuffer.write("Host: " + message.mHost);
-        mBuffer.crlf();
-        mBuffer.write("Upgrade: WebSocket");
-        mBuffer.crlf();
-        mBuffer.write("Connection: Upgrade");
-        mBuffer.crlf();
-
-        mBuffer.write("Sec-WebSocket-Key: " + newHandshakeKey());
-        mBuffer.crlf();
-
-        if (message.mOrigin != null && !message.mOrigin.equals("")) {
-            mBuffer.write("Origin: " + message.mOrigin);
-            mBuffer.crlf();
-        }
-
-        if (message.mSubprotocols != null && message.mSubprotocols.length > 0) {
-            mBuffer.write("Sec-WebSocket-Protocol: ");
-            for (int i = 0; i < message.mSubprotocols.length; ++i) {
-                mBuffer.write(message.mSubprotocols[i]);
-                if (i != message.mSubprotocols.length - 1) {
-                    mBuffer.write(", ");
-                }
-            }
-            mBuffer.crlf();
-        }
-
-        mBuffer.write("Sec-WebSocket-Version: 13");
-        mBuffer.crlf();
 
-        // Header injection
-        if (message.mHeaderList != null) {
-            for (NameValuePair pair : message.mHeaderList) {
-                mBuffer.write(pair.getName() + ":" + pair.getValue());
-                mBuffer.crlf();
-            }
-        }
-        mBuffer.crlf();
+    /**
+     * Send WebSocket client handshake from a cached request, only the key is new.
+     */
+    private void sendClientHandshake(ClientHandshakeTemplate template) throws IOException {
+        template.writeTo(mBuffer, newHandshakeKey());
     }
 
 
@@ -271,7 +335,7 @@ class WebSocketWriter extends Handler {
         if (message.mPayload.length > mOptions.getMaxMessagePayloadSize()) {
             throw new WebSocketException("message payload exceeds payload limit");
         }
-        sendFrame(2, true, message.mPayload);
+        sendMessage(2, message.mPayload, 0, message.mPayload.length);
     }
 
 
@@ -283,7 +347,7 @@ class WebSocketWriter extends Handler {
         if (payload.length > mOptions.getMaxMessagePayloadSize()) {
             throw new WebSocketException("message payload exceeds payload limit");
         }
-        sendFrame(1, true, payload);
+        sendMessage(1, payload, 0, payload.length);
     }
 
 
@@ -294,7 +358,161 @@ class WebSocketWriter extends Handler {
         if (message.mPayload.length > mOptions.getMaxMessagePayloadSize()) {
             throw new WebSocketException("message payload exceeds payload limit");
         }
-        sendFrame(1, true, message.mPayload);
+        sendMessage(1, message.mPayload, 0, message.mPayload.length);
+    }
+
+
+    /**
+     * Send the next fragment of a streamed message: whatever one read of its source
+     * returns, up to the fragment size. Fragments are sent uncompressed and the message
+     * stays current (see pollMessage()) till its source is read to the end, so control
+     * frames and Quit are handled between any two reads. Frames buffered so far are
+     * written out before the read, it may block. The end of the source is only known
+     * after the last fragment was sent, so the message is closed by an empty final frame.
+     */
+    private void sendStreamFragment(WebSocketMessage.StreamMessage message) throws IOException {
+        if (mStreamBuffer == null) {
+            mStreamBuffer = ByteBuffer.allocate(mOptions.getStreamFragmentSize());
+        }
+        try {
+            mStream = message;
+            if (mBuffer.getBuffer().position() > 0) {
+                flushBuffer();
+            }
+            mStreamBuffer.clear();
+            int read = message.mSource.read(mStreamBuffer);
+            if (read == 0) {
+                // nothing read (sources are blocking, so should not happen), try again next poll
+                return;
+            }
+            boolean last = read < 0;
+            int opcode = mStreamStarted ? 0 : (message.mText ? 1 : 2);
+            sendFrame(opcode, last, mStreamBuffer.array(), 0, mStreamBuffer.position());
+            mStreamStarted = true;
+            if (last) {
+                endStream();
+            }
+        } catch (IOException e) {
+            // message can not be completed, the connection has to go
+            endStream();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Close the source of the current streamed message, if any.
+     */
+    private void endStream() {
+        if (mStream != null) {
+            try {
+                mStream.mSource.close();
+            } catch (IOException e) {
+                BefLog.e(TAG, e);
+            }
+            mStream = null;
+            mStreamStarted = false;
+        }
+    }
+
+
+    /**
+     * Close the sources of streamed messages still queued when the writer quits.
+     */
+    private void closePendingStreams() {
+        Object message;
+        while ((message = mDataQueue.poll()) != null) {
+            if (message instanceof WebSocketMessage.StreamMessage) {
+                try {
+                    ((WebSocketMessage.StreamMessage) message).mSource.close();
+                } catch (IOException e) {
+                    BefLog.e(TAG, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Send a complete data message, compressed when permessage-deflate was negotiated
+     * and the message is large enough to benefit.
+     *
+     * @param opcode  The WebSocket data frame opcode.
+     * @param payload Message payload.
+     * @param offset  Offset within payload of the message.
+     * @param length  Length of the message.
+     */
+    private void sendMessage(int opcode, byte[] payload, int offset, int length) throws IOException, WebSocketException {
+        // Deflater.SYNC_FLUSH is available from KitKat on, compression is optional per message
+        if (mDeflate == null || length < MIN_DEFLATE_SIZE || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            sendFragmented(opcode, false, payload, offset, length);
+            return;
+        }
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            mDeflateOutput = new byte[1024];
+        }
+
+        // compress and flush to a byte boundary, output is complete once deflate() leaves room
+        mDeflater.setInput(payload, offset, length);
+        int size = 0;
+        while (true) {
+            if (size == mDeflateOutput.length) {
+                byte[] grown = new byte[mDeflateOutput.length * 2];
+                System.arraycopy(mDeflateOutput, 0, grown, 0, size);
+                mDeflateOutput = grown;
+            }
+            size += mDeflater.deflate(mDeflateOutput, size, mDeflateOutput.length - size, Deflater.SYNC_FLUSH);
+            if (size < mDeflateOutput.length) {
+                break;
+            }
+        }
+        if (mDeflate.mClientNoContextTakeover) {
+            mDeflater.reset();
+        }
+
+        // strip the 00 00 ff ff tail of the flush block, the receiver appends it again
+        sendFragmented(opcode, true, mDeflateOutput, 0, size - PerMessageDeflate.TAIL.length);
+    }
+
+
+    /**
+     * Send a message in frames of at most the stream fragment size. Pending pings and
+     * pongs are sent between the frames and the send buffer is written out as it fills,
+     * so a large message neither holds back control frames nor grows the buffer to its
+     * whole size.
+     *
+     * @param opcode  The WebSocket data frame opcode.
+     * @param rsv1    RSV1 flag for first frame (permessage-deflate).
+     * @param payload Message payload.
+     * @param offset  Offset within payload of the message.
+     * @param length  Length of the message.
+     */
+    private void sendFragmented(int opcode, boolean rsv1, byte[] payload, int offset, int length) throws IOException, WebSocketException {
+        int fragmentSize = mOptions.getStreamFragmentSize();
+        int end = offset + length;
+        while (end - offset > fragmentSize) {
+            sendFrame(opcode, false, rsv1, payload, offset, fragmentSize);
+            opcode = 0;
+            rsv1 = false;
+            offset += fragmentSize;
+            sendControlFrames();
+        }
+        sendFrame(opcode, true, rsv1, payload, offset, end - offset);
+    }
+
+
+    /**
+     * Send control messages forwarded meanwhile, in the middle of a fragmented message.
+     */
+    private void sendControlFrames() throws IOException, WebSocketException {
+        Object message;
+        while ((message = mControlQueue.poll()) != null) {
+            processMessage(message);
+        }
+        if (mBuffer.getBuffer().position() >= FLUSH_THRESHOLD) {
+            flushBuffer();
+        }
     }
 
 
@@ -326,12 +544,30 @@ class WebSocketWriter extends Handler {
      * @param length  Length of the chunk within payload to send.
      */
     protected void sendFrame(int opcode, boolean fin, byte[] payload, int offset, int length) throws IOException {
+        sendFrame(opcode, fin, false, payload, offset, length);
+    }
+
+
+    /**
+     * Sends a WebSockets frame, optionally with RSV1 set to mark a compressed message.
+     *
+     * @param opcode  The WebSocket frame opcode.
+     * @param fin     FIN flag for WebSocket frame.
+     * @param rsv1    RSV1 flag for WebSocket frame (permessage-deflate).
+     * @param payload Frame payload or null.
+     * @param offset  Offset within payload of the chunk to send.
+     * @param length  Length of the chunk within payload to send.
+     */
+    protected void sendFrame(int opcode, boolean fin, boolean rsv1, byte[] payload, int offset, int length) throws IOException {
 
         // first octet
         byte b0 = 0;
         if (fin) {
             b0 |= (byte) (1 << 7);
         }
+        if (rsv1) {
+            b0 |= (byte) (1 << 6);
+        }
         b0 |= (byte) opcode;
         mBuffer.write(b0);
 
@@ -365,54 +601,76 @@ class WebSocketWriter extends Handler {
                     (byte) (len & 0xff)});
         }
 
-        byte mask[] = null;
+        int mask = 0;
         if (mOptions.getMaskClientFrames()) {
             // a mask is always needed, even without payload
             mask = newFrameMask();
-            mBuffer.write(mask[0]);
-            mBuffer.write(mask[1]);
-            mBuffer.write(mask[2]);
-            mBuffer.write(mask[3]);
+            mBuffer.write((byte) (mask >>> 24));
+            mBuffer.write((byte) (mask >>> 16));
+            mBuffer.write((byte) (mask >>> 8));
+            mBuffer.write((byte) mask);
         }
 
         if (len > 0) {
             if (mOptions.getMaskClientFrames()) {
-                /// \todo optimize masking
-                /// \todo masking within buffer of output stream
-                for (int i = 0; i < len; ++i) {
-                    payload[i + offset] ^= mask[i % 4];
-                }
+                // mask while copying into send buffer, payload is left untouched
+                mBuffer.writeMasked(payload, offset, length, mask);
+            } else {
+                mBuffer.write(payload, offset, length);
             }
-            mBuffer.write(payload, offset, length);
         }
     }
 
 
     /**
-     * Process message received from foreground thread. This is called from
-     * the message looper set up for the background thread running this writer.
-     *
-     * @param msg Message from thread message queue.
+     * Run the background writer thread loop: drain the queues, then park
+     * until forward() hands over more.
      */
     @Override
-    public void handleMessage(Message msg) {
+    public void run() {
+
+        BefLog.d(TAG, "Running");
+
+        while (!stopped) {
+            drain();
+            if (!stopped) {
+                mParked = true;
+                if (mControlQueue.isEmpty() && mDataQueue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                mParked = false;
+            }
+        }
+
+        closePendingStreams();
+        mBuffers.releaseSendBuffer(mBuffer.getBuffer());
+        BefLog.v(TAG, "ended");
+    }
+
+
+    /**
+     * Drain messages forwarded from foreground thread. All queued messages are
+     * framed into the send buffer and written out together, control frames ahead
+     * of data.
+     */
+    private void drain() {
 
         try {
 
             // clear send buffer
             mBuffer.clear();
 
-            // process message from master
-            processMessage(msg.obj);
+            // process messages from master
+            Object message;
+            while (!stopped && (message = pollMessage()) != null) {
+                processMessage(message);
+                if (mBuffer.getBuffer().position() >= FLUSH_THRESHOLD) {
+                    flushBuffer();
+                }
+            }
 
             // send out buffered data
-            mBuffer.flip();
-            if (mBuffer.remaining() > 0) {
-                byte arr[] = new byte[mBuffer.remaining()];
-                mBuffer.getBuffer().get(arr);
-                // this can block on socket write
-                mSocket.getOutputStream().write(arr);
-            }
+            flushBuffer();
 
         } catch (SocketException e) {
 
@@ -472,6 +730,10 @@ class WebSocketWriter extends Handler {
 
             sendBinaryMessage((WebSocketMessage.BinaryMessage) msg);
 
+        } else if (msg instanceof WebSocketMessage.StreamMessage) {
+
+            sendStreamFragment((WebSocketMessage.StreamMessage) msg);
+
         } else if (msg instanceof WebSocketMessage.Ping) {
 
             sendPing((WebSocketMessage.Ping) msg);
@@ -488,11 +750,23 @@ class WebSocketWriter extends Handler {
 
             sendClientHandshake((WebSocketMessage.ClientHandshake) msg);
 
+        } else if (msg instanceof ClientHandshakeTemplate) {
+
+            sendClientHandshake((ClientHandshakeTemplate) msg);
+
+        } else if (msg instanceof WebSocketMessage.ServerHandshake) {
+
+            // compress outgoing messages from now on when server accepted permessage-deflate
+            mDeflate = ((WebSocketMessage.ServerHandshake) msg).mDeflate;
+
         } else if (msg instanceof WebSocketMessage.Quit) {
 
-            mLooper.quit();
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+            endStream();
             stopped = true;
-            BefLog.v(TAG, "ended");
 
             return;
 